@@ -0,0 +1,66 @@
+/*
+ * ImageJFind: A Diamond application for interoperating with ImageJ
+ *
+ * Copyright (c) 2006-2008 Carnegie Mellon University. All rights reserved.
+ * Additional copyrights may be listed below.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution in the file named LICENSE.
+ *
+ * Technical and financial contributors are listed in the file named
+ * CREDITS.
+ */
+
+import diamondfilter.bench.ExpressionEngine;
+import ij.measure.ResultsTable;
+
+import java.lang.reflect.Field;
+
+/**
+ * Exposes Diamond_Filter's package-level entry points to the benchmarks.
+ */
+public class DiamondFilterAdapter implements ExpressionEngine {
+
+    private final Diamond_Filter filter = new Diamond_Filter();
+
+    private ResultsTable rTable;
+
+    public void setResultsTable(ResultsTable rTable) {
+        this.rTable = rTable;
+        // set by run() in the plugin
+        try {
+            Field f = Diamond_Filter.class.getDeclaredField("rTable");
+            f.setAccessible(true);
+            f.set(filter, rTable);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public Object tokenize(String expr) throws Exception {
+        Diamond_Filter.Lexer lexer = new Diamond_Filter.Lexer(expr);
+        int tokens = 0;
+        while (lexer.next() != Diamond_Filter.TokenType.EOF) {
+            tokens++;
+        }
+        return tokens;
+    }
+
+    public double parse(String expr) throws Exception {
+        // bypasses the cache, so every call pays for compiling
+        Diamond_Filter.Expression e = Diamond_Filter.Expression.compile(expr);
+        if (!e.isValid()) {
+            throw new IllegalArgumentException(e.getError());
+        }
+        return e.evaluate(rTable);
+    }
+
+    public String evaluate(String expr) {
+        return filter.evaluate(expr);
+    }
+
+    public double aggregate(String aggregator, double values[]) {
+        return Diamond_Filter.AggregatorType.valueOf(aggregator).run(values);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * ImageJFind: A Diamond application for interoperating with ImageJ
+ *
+ * Copyright (c) 2006-2008 Carnegie Mellon University. All rights reserved.
+ * Additional copyrights may be listed below.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution in the file named LICENSE.
+ *
+ * Technical and financial contributors are listed in the file named
+ * CREDITS.
+ */
+
+package diamondfilter.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Each aggregator over columns from 10 to 10 million rows, both on its own
+ * and through an expression over a results table (which adds the column
+ * lookup).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class AggregatorBenchmark {
+
+    @Param( { "10", "1000", "100000", "10000000" })
+    public int rows;
+
+    @Param( { "SUM", "COUNT", "AVERAGE", "PRODUCT", "MIN", "MAX", "MEDIAN",
+            "VARIANCE", "STDDEV" })
+    public String aggregator;
+
+    private ExpressionEngine engine;
+
+    private double values[];
+
+    private String expr;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        values = Tables.newValues(rows, 42);
+
+        engine = Engines.newEngine();
+        engine.setResultsTable(Tables.newTable(new String[] { "Value" },
+                rows, 42));
+        expr = aggregator + "('Value')";
+    }
+
+    @Benchmark
+    public double aggregate() {
+        return engine.aggregate(aggregator, values);
+    }
+
+    @Benchmark
+    public String evaluate() {
+        return engine.evaluate(expr);
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * ImageJFind: A Diamond application for interoperating with ImageJ
+ *
+ * Copyright (c) 2006-2008 Carnegie Mellon University. All rights reserved.
+ * Additional copyrights may be listed below.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution in the file named LICENSE.
+ *
+ * Technical and financial contributors are listed in the file named
+ * CREDITS.
+ */
+
+package diamondfilter.bench;
+
+/**
+ * Finds the Diamond_Filter adapter.
+ */
+final class Engines {
+
+    private Engines() {
+    }
+
+    static ExpressionEngine newEngine() {
+        try {
+            return (ExpressionEngine) Class.forName("DiamondFilterAdapter")
+                    .getDeclaredConstructor().newInstance();
+        } catch (Exception e) {
+            throw new IllegalStateException("Cannot load the adapter", e);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * ImageJFind: A Diamond application for interoperating with ImageJ
+ *
+ * Copyright (c) 2006-2008 Carnegie Mellon University. All rights reserved.
+ * Additional copyrights may be listed below.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution in the file named LICENSE.
+ *
+ * Technical and financial contributors are listed in the file named
+ * CREDITS.
+ */
+
+package diamondfilter.bench;
+
+import ij.measure.ResultsTable;
+
+/**
+ * What the benchmarks need from Diamond_Filter.
+ * <p>
+ * ImageJ plugins live in the default package, which JMH does not allow and
+ * named packages cannot import, so the plugin is driven through this
+ * interface, implemented by DiamondFilterAdapter next to it.
+ */
+public interface ExpressionEngine {
+
+    void setResultsTable(ResultsTable rTable);
+
+    /** Runs the lexer over an expression without parsing it. */
+    Object tokenize(String expr) throws Exception;
+
+    /** Compiles an expression afresh and evaluates it, as a number. */
+    double parse(String expr) throws Exception;
+
+    /**
+     * Evaluates an expression the way the plugin does for each object, with
+     * the compiled form cached after the first call.
+     */
+    String evaluate(String expr);
+
+    /** Runs one aggregator over a column. */
+    double aggregate(String aggregator, double values[]);
+}
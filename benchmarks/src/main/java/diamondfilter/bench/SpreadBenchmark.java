@@ -0,0 +1,59 @@
+/*
+ * ImageJFind: A Diamond application for interoperating with ImageJ
+ *
+ * Copyright (c) 2006-2008 Carnegie Mellon University. All rights reserved.
+ * Additional copyrights may be listed below.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution in the file named LICENSE.
+ *
+ * Technical and financial contributors are listed in the file named
+ * CREDITS.
+ */
+
+package diamondfilter.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Expressions over large tables as particle analysis filters write them:
+ * one that aggregates the same column several times, and a threshold whose
+ * expensive second half is skipped once the first half has decided it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class SpreadBenchmark {
+
+    private static final String EXPR = "(MAX('Area') - MIN('Area')) / AVERAGE('Area')";
+
+    private static final String GUARDED_EXPR = "COUNT('Area') > 10000000 and MEDIAN('Area') > 1";
+
+    @Param( { "1000", "100000", "1000000" })
+    public int rows;
+
+    private ExpressionEngine engine;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        engine = Engines.newEngine();
+        engine.setResultsTable(Tables.newTable(new String[] { "Area" }, rows,
+                42));
+    }
+
+    @Benchmark
+    public String evaluate() {
+        return engine.evaluate(EXPR);
+    }
+
+    @Benchmark
+    public String evaluateGuarded() {
+        return engine.evaluate(GUARDED_EXPR);
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * ImageJFind: A Diamond application for interoperating with ImageJ
+ *
+ * Copyright (c) 2006-2008 Carnegie Mellon University. All rights reserved.
+ * Additional copyrights may be listed below.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution in the file named LICENSE.
+ *
+ * Technical and financial contributors are listed in the file named
+ * CREDITS.
+ */
+
+package diamondfilter.bench;
+
+import ij.measure.ResultsTable;
+
+import java.util.Random;
+
+/**
+ * Synthetic results tables.
+ */
+final class Tables {
+
+    private Tables() {
+    }
+
+    /* positive values, so PRODUCT and the divisions stay finite-ish */
+    static double[] newValues(int rows, long seed) {
+        Random random = new Random(seed);
+        double values[] = new double[rows];
+        for (int i = 0; i < rows; i++) {
+            values[i] = 0.5 + random.nextDouble();
+        }
+        return values;
+    }
+
+    static ResultsTable newTable(String columns[], int rows, long seed) {
+        ResultsTable rt = new ResultsTable();
+        for (int i = 0; i < columns.length; i++) {
+            rt.setValues(columns[i], newValues(rows, seed + i));
+        }
+        return rt;
+    }
+}
@@ -20,41 +20,50 @@ import ij.plugin.PlugIn;
 import ij.plugin.filter.Analyzer;
 import ij.plugin.frame.Recorder;
 import ijloader.IJLoader;
+import ijloader.Log;
 
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.TextEvent;
 import java.awt.event.TextListener;
-import java.io.IOException;
-import java.io.StreamTokenizer;
-import java.io.StringReader;
+import java.lang.reflect.Field;
 import java.util.*;
-import java.util.Queue;
 import java.util.concurrent.*;
 
 public class Diamond_Filter implements PlugIn {
 
     public void run(String arg0) {
-        System.err.println("Diamond filter started...");
+        Log.debug("Diamond filter started...");
         rTable = Analyzer.getResultsTable();
 
-        if (IJ.macroRunning()) {
+        // there is no one to answer a dialog in a headless JVM, so take
+        // whatever options we were given
+        if (IJ.macroRunning() || GraphicsEnvironment.isHeadless()) {
             String options = Macro.getOptions();
-            System.err.println("options: " + options);
-            String result = evaluate(Macro.getValue(options, MACRO_FIELD_NAME,
-                    ""));
-
-            System.err.println(" Writing result: " + result);
-            if (result.equals("") || !isValidResult(result)) {
-                System.err.print(" Bad result: ");
-                System.err.println(result);
+            if (Log.isEnabled(Log.DEBUG)) {
+                Log.debug("options: " + options);
+            }
+            if (options == null) {
+                options = "";
+            }
+            String expr = Macro.getValue(options, MACRO_FIELD_NAME, "");
+            double score = score(expr);
+
+            String result;
+            if (Double.isNaN(score) || Double.isInfinite(score)) {
+                Log.warn("Bad result: " + evaluate(expr));
                 result = "0.0";
+            } else {
+                result = Double.toString(score);
+            }
+            if (Log.isEnabled(Log.DEBUG)) {
+                Log.debug(" Writing result: " + result);
             }
 
             IJLoader.writeResult(result);
         } else {
-            System.err.println("Opening dialog...");
+            Log.debug("Opening dialog...");
             new DiamondFilterDialog();
         }
 
@@ -218,10 +227,14 @@ public class Diamond_Filter implements PlugIn {
         }
 
         private String getSubExpr() {
-            return functionChooser.getSelectedItem()
-                    + "("
-                    + ColumnIdToken
-                            .makeColExpr(columnChooser.getSelectedItem()) + ")";
+            String function = functionChooser.getSelectedItem();
+            StringBuilder sb = new StringBuilder(function);
+            sb.append('(').append(makeColExpr(columnChooser.getSelectedItem()));
+            for (String arg : AggregatorType.valueOf(function)
+                    .getExampleArgs()) {
+                sb.append(", ").append(arg);
+            }
+            return sb.append(')').toString();
         }
 
         private final TextComponent tc;
@@ -233,501 +246,1487 @@ public class Diamond_Filter implements PlugIn {
     }
 
     protected String evaluate(String expr) {
-        String ret;
+        Expression e = Expression.get(expr);
+        if (e.isEmpty()) {
+            return "";
+        }
+        if (!e.isValid()) {
+            return e.getError();
+        }
         try {
-            Queue<BaseToken> tokens = tokenize(expr);
+            return Double.toString(e.evaluate(rTable));
+        } catch (ParseException ex) {
+            return e.describeError(ex);
+        }
+    }
 
-            if (tokens.size() == 0) {
-                return "";
-            }
+    protected boolean isValidResult(String expr) {
+        String evalResult = evaluate(expr);
 
-            ReferenceString refStr = new ReferenceString(tokens);
+        return (!evalResult.startsWith(ERROR_PREFIX) && !evalResult.equals(""));
+    }
 
+    /*
+     * The score for an expression, or NaN if it does not compile or cannot
+     * be evaluated against the current results table.
+     */
+    private double score(String expr) {
+        Expression e = Expression.get(expr);
+        if (!e.isValid()) {
+            return Double.NaN;
+        }
+        try {
+            return e.evaluate(rTable);
+        } catch (ParseException ex) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * A compiled expression.
+     * <p>
+     * Expressions are parsed once into a tree of {@link Node}s and cached by
+     * their text, so evaluating one for an object only fetches columns and
+     * does the arithmetic. Each column is summarized once per evaluation,
+     * however many aggregators use it (see {@link ColumnSummary}). Whether
+     * an expression is well-formed is known once it is compiled; whether its
+     * columns exist depends on the results table and is only known when it
+     * is evaluated.
+     */
+    protected static class Expression {
+        private static final int CACHE_SIZE = 64;
+
+        private static final Map<String, Expression> cache = new LinkedHashMap<String, Expression>(
+                16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, Expression> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+
+        public static Expression get(String text) {
+            synchronized (cache) {
+                Expression e = cache.get(text);
+                if (e == null) {
+                    e = compile(text);
+                    cache.put(text, e);
+                }
+                return e;
+            }
+        }
+
+        /** Compiles an expression, bypassing the cache. */
+        public static Expression compile(String text) {
+            Lexer lexer = new Lexer(text);
+            Columns columns = new Columns();
             try {
-                double result = getExpr(tokens);
-                if (!tokens.isEmpty()) {
+                if (lexer.next() == TokenType.EOF) {
+                    return new Expression(text, null, columns, null);
+                }
+                Node root = getExpr(lexer, columns);
+                if (lexer.type() != TokenType.EOF) {
                     throw new ParseException(
-                            "There is extra code at the end of the line!");
+                            "There is extra code at the end of the line!",
+                            lexer.start());
                 }
-                ret = Double.toString(result);
+                return new Expression(text, root, columns, null);
             } catch (ParseException e) {
-                StringBuilder retBuilder = new StringBuilder();
-                retBuilder.append("Error!\n");
-                retBuilder.append(refStr.toString() + "\n");
-                for (int i = 0; i < refStr.location(tokens.size()); i++)
-                    retBuilder.append(' ');
-                retBuilder.append("^\n");
-                retBuilder.append(e.getMessage());
-                ret = retBuilder.toString();
-            }
-        } catch (TokenizeException e) {
-            ret = "Error!\n" + e.getMessage();
-        }
-        return ret;
-    }
+                Expression broken = new Expression(text, null, columns, null);
+                return new Expression(text, null, columns, broken
+                        .describeError(e));
+            }
+        }
 
-    protected boolean isValidResult(String expr) {
-        String evalResult = evaluate(expr);
+        private Expression(String text, Node root, Columns columns,
+                String error) {
+            this.text = text;
+            this.root = root;
+            this.columnNames = columns.names.toArray(new String[0]);
+            this.columnNeeds = new int[columnNames.length];
+            for (int i = 0; i < columnNeeds.length; i++) {
+                columnNeeds[i] = columns.needs.get(i);
+            }
+            this.error = error;
+        }
 
-        return (!evalResult.startsWith("Error!\n") && !evalResult.equals(""));
-    }
+        public boolean isEmpty() {
+            return root == null && error == null;
+        }
 
-    protected double getExpr(Queue<BaseToken> q) throws ParseException {
-        double term = getTerm(q);
+        public boolean isValid() {
+            return root != null;
+        }
 
-        BaseToken nextToken = q.peek();
+        public String getError() {
+            return error;
+        }
 
-        if (nextToken == null) {
-            return term;
+        public double evaluate(ResultsTable rTable) throws ParseException {
+            return root.eval(new Evaluation(rTable, columnNames, columnNeeds));
         }
 
-        double expr;
-        switch (nextToken.getType()) {
-        case OpPlus:
-            q.remove();
-            expr = getExpr(q);
-            return term + expr;
-        case OpMinus:
-            q.remove();
-            expr = getExpr(q);
-            return term - expr;
-        default:
-            return term;
+        /*
+         * Error!
+         * <the line of the expression with the problem>
+         *     ^
+         * <message>
+         */
+        public String describeError(ParseException e) {
+            int pos = Math.min(Math.max(e.getPosition(), 0), text.length());
+            int lineStart = Math.max(text.lastIndexOf('\n', pos - 1),
+                    text.lastIndexOf('\r', pos - 1)) + 1;
+            int lineEnd = lineStart;
+            while (lineEnd < text.length() && text.charAt(lineEnd) != '\n'
+                    && text.charAt(lineEnd) != '\r') {
+                lineEnd++;
+            }
+
+            StringBuilder sb = new StringBuilder(ERROR_PREFIX);
+            sb.append(text, lineStart, lineEnd).append('\n');
+            for (int i = lineStart; i < pos; i++) {
+                sb.append(text.charAt(i) == '\t' ? '\t' : ' ');
+            }
+            sb.append("^\n");
+            sb.append(e.getMessage());
+            return sb.toString();
+        }
+
+        /*
+         * expr := or ['?' expr ':' expr]
+         * or := and ['or' or]
+         * and := not ['and' and]
+         * not := 'not' not | comparison
+         * comparison := sum [('<' | '<=' | '>' | '>=' | '==' | '!=') sum]
+         * sum := term [('+' | '-') sum]
+         * term := factor [('*' | '/') term]
+         *
+         * sum and term are right-associative (a - b - c is a - (b - c)), as
+         * they always have been; saved searches depend on it.
+         */
+        private static Node getExpr(Lexer lexer, Columns columns)
+                throws ParseException {
+            Node condition = getOr(lexer, columns);
+            if (lexer.type() != TokenType.Question) {
+                return condition;
+            }
+            lexer.next();
+            Node ifTrue = getExpr(lexer, columns);
+            if (lexer.type() != TokenType.Colon) {
+                throw new ParseException(
+                        "Expecting the ':' that goes with a '?'.", lexer
+                                .start());
+            }
+            lexer.next();
+            return new ConditionalNode(condition, ifTrue, getExpr(lexer,
+                    columns));
         }
-    }
 
-    protected double getTerm(Queue<BaseToken> q) throws ParseException {
-        double factor = getFactor(q);
+        private static Node getOr(Lexer lexer, Columns columns)
+                throws ParseException {
+            Node and = getAnd(lexer, columns);
+            if (lexer.type() != TokenType.Or) {
+                return and;
+            }
+            lexer.next();
+            return new OrNode(and, getOr(lexer, columns));
+        }
 
-        BaseToken nextToken = q.peek();
+        private static Node getAnd(Lexer lexer, Columns columns)
+                throws ParseException {
+            Node not = getNot(lexer, columns);
+            if (lexer.type() != TokenType.And) {
+                return not;
+            }
+            lexer.next();
+            return new AndNode(not, getAnd(lexer, columns));
+        }
 
-        if (nextToken == null) {
-            return factor;
+        private static Node getNot(Lexer lexer, Columns columns)
+                throws ParseException {
+            if (lexer.type() != TokenType.Not) {
+                return getComparison(lexer, columns);
+            }
+            lexer.next();
+            return new NotNode(getNot(lexer, columns));
         }
 
-        double term;
-        switch (nextToken.getType()) {
-        case OpMult:
-            q.remove();
-            term = getTerm(q);
-            return factor * term;
-        case OpDiv:
-            q.remove();
-            term = getTerm(q);
-            return factor / term;
-        default:
-            return factor;
+        private static Node getComparison(Lexer lexer, Columns columns)
+                throws ParseException {
+            Node sum = getSum(lexer, columns);
+            TokenType op = lexer.type();
+            if (!op.isComparison()) {
+                return sum;
+            }
+            lexer.next();
+            Node node = new ComparisonNode(op, sum, getSum(lexer, columns));
+            if (lexer.type().isComparison()) {
+                throw new ParseException(
+                        "Comparisons cannot be chained; use 'and'.", lexer
+                                .start());
+            }
+            return node;
         }
-    }
 
-    protected double getFactor(Queue<BaseToken> q) throws ParseException {
-        BaseToken nextToken = q.peek();
+        private static Node getSum(Lexer lexer, Columns columns)
+                throws ParseException {
+            Node term = getTerm(lexer, columns);
+            switch (lexer.type()) {
+            case OpPlus:
+            case OpMinus:
+                char op = lexer.type().getAssocChar();
+                lexer.next();
+                return new BinaryNode(op, term, getSum(lexer, columns));
+            default:
+                return term;
+            }
+        }
 
-        if (nextToken == null) {
-            throw new ParseException(
-                    "Expecting more, but ran into the end of the line!");
+        private static Node getTerm(Lexer lexer, Columns columns)
+                throws ParseException {
+            Node factor = getFactor(lexer, columns);
+            switch (lexer.type()) {
+            case OpMult:
+            case OpDiv:
+                char op = lexer.type().getAssocChar();
+                lexer.next();
+                return new BinaryNode(op, factor, getTerm(lexer, columns));
+            default:
+                return factor;
+            }
         }
 
-        switch (nextToken.getType()) {
-        case OpMinus:
-            q.remove();
-            double factor = getFactor(q);
-            return -factor;
-        case Literal:
-            try {
-                LiteralToken literal = (LiteralToken) nextToken;
-                q.remove();
-                return literal.getValue();
-            } catch (ClassCastException e) {
+        /*
+         * factor := '-' factor | number | AGGREGATOR aggregator | '(' expr ')'
+         */
+        private static Node getFactor(Lexer lexer, Columns columns)
+                throws ParseException {
+            switch (lexer.type()) {
+            case EOF:
                 throw new ParseException(
-                        "Found a literal but did not have LiteralToken, contact developer.");
+                        "Expecting more, but ran into the end of the line!",
+                        lexer.start());
+            case OpMinus:
+                lexer.next();
+                return new NegateNode(getFactor(lexer, columns));
+            case Literal:
+                double value = lexer.number();
+                lexer.next();
+                return new LiteralNode(value);
+            case Aggregator:
+                AggregatorType aggType = lexer.aggregator();
+                lexer.next();
+                return getAggregator(lexer, aggType, columns);
+            case LParen:
+                lexer.next();
+                Node expr = getExpr(lexer, columns);
+                getRParen(lexer);
+                return expr;
+            default:
+                throw new ParseException(
+                        "You seem to be missing something here.", lexer
+                                .start());
+            }
+        }
+
+        /*
+         * aggregator := name | '(' aggregator ')' | '(' name (',' number)* ')'
+         *
+         * where name is a column name in quotes and the numbers are
+         * arguments for aggregators that take them, such as PERCENTILE.
+         */
+        private static Node getAggregator(Lexer lexer, AggregatorType aggType,
+                Columns columns) throws ParseException {
+            switch (lexer.type()) {
+            case LParen:
+                lexer.next();
+                if (lexer.type() != TokenType.ColumnID) {
+                    Node node = getAggregator(lexer, aggType, columns);
+                    getRParen(lexer);
+                    return node;
+                }
+                String colName = lexer.column();
+                int position = lexer.start();
+                lexer.next();
+                ArrayList<Double> args = new ArrayList<Double>();
+                while (lexer.type() == TokenType.Comma) {
+                    lexer.next();
+                    args.add(getNumber(lexer));
+                }
+                Node node = newAggregatorNode(aggType, colName, args,
+                        position, lexer.start(), columns);
+                getRParen(lexer);
+                return node;
+            case ColumnID:
+                Node column = newAggregatorNode(aggType, lexer.column(),
+                        new ArrayList<Double>(), lexer.start(), lexer
+                                .start(), columns);
+                lexer.next();
+                return column;
+            default:
+                throw new ParseException(
+                        "Expecting a table column ID, but found something else!",
+                        lexer.start());
+            }
+        }
+
+        /* argsEnd is where to point if there are too few or many arguments */
+        private static Node newAggregatorNode(AggregatorType aggType,
+                String colName, ArrayList<Double> args, int position,
+                int argsEnd, Columns columns) throws ParseException {
+            if (args.size() != aggType.getArity()) {
+                throw new ParseException(aggType + " takes "
+                        + aggType.getArity() + " number(s) after the column "
+                        + "name, but found " + args.size() + ".", argsEnd);
+            }
+            double argValues[] = new double[args.size()];
+            for (int i = 0; i < argValues.length; i++) {
+                argValues[i] = args.get(i);
             }
-        case Aggregator:
             try {
-                AggregatorToken agg = (AggregatorToken) nextToken;
-                AggregatorType aggType = agg.getAggType();
+                aggType.check(argValues);
+            } catch (IllegalArgumentException e) {
+                throw new ParseException(e.getMessage(), argsEnd);
+            }
+            return new AggregatorNode(aggType, argValues, columns.add(colName,
+                    aggType), position);
+        }
 
-                q.remove();
-                float[] values = getColumn(q);
+        /* number := ['-'] number */
+        private static double getNumber(Lexer lexer) throws ParseException {
+            double sign = 1;
+            if (lexer.type() == TokenType.OpMinus) {
+                sign = -1;
+                lexer.next();
+            }
+            if (lexer.type() != TokenType.Literal) {
+                throw new ParseException(
+                        "Expecting a number, but found something else!", lexer
+                                .start());
+            }
+            double value = sign * lexer.number();
+            lexer.next();
+            return value;
+        }
 
-                return aggType.run(values);
-            } catch (ClassCastException e) {
+        private static void getRParen(Lexer lexer) throws ParseException {
+            if (lexer.type() != TokenType.RParen) {
                 throw new ParseException(
-                        "Found an aggregator but did not have AggregatorToken, contact developer.");
+                        "Mismatched parentheses! Expected right parenthesis.",
+                        lexer.start());
             }
-        case LParen:
-            q.remove();
-            double expr = getExpr(q);
-            getRParen(q);
-            return expr;
-        default:
-            throw new ParseException("You seem to be missing something here.");
+            lexer.next();
         }
-    }
 
-    protected float[] getColumn(Queue<BaseToken> q) throws ParseException {
-        if (rTable == null) {
-            throw new ParseException("Results table necessary, but no "
-                    + "results table found!");
+        /* the distinct columns an expression aggregates, and what each needs */
+        private static class Columns {
+            int add(String name, AggregatorType aggType) {
+                int slot = names.indexOf(name);
+                if (slot < 0) {
+                    slot = names.size();
+                    names.add(name);
+                    needs.add(0);
+                }
+                needs.set(slot, needs.get(slot) | aggType.getNeeds());
+                return slot;
+            }
+
+            final ArrayList<String> names = new ArrayList<String>();
+
+            final ArrayList<Integer> needs = new ArrayList<Integer>();
         }
 
-        BaseToken nextToken = q.peek();
+        private final String text;
 
-        float[] ret;
-        switch (nextToken.getType()) {
-        case LParen:
-            q.remove();
-            ret = getColumn(q);
-            getRParen(q);
-            break;
-        case ColumnID:
-            try {
-                ColumnIdToken colIdToken = (ColumnIdToken) nextToken;
-                int index = rTable.getColumnIndex(colIdToken.getName());
+        private final Node root;
+
+        private final String columnNames[];
+
+        private final int columnNeeds[];
+
+        private final String error;
+    }
+
+    /**
+     * The state of one evaluation of an expression: the results table and
+     * the columns summarized from it so far.
+     */
+    protected static class Evaluation {
+        public Evaluation(ResultsTable rTable, String columnNames[],
+                int columnNeeds[]) {
+            this.rTable = rTable;
+            this.columnNames = columnNames;
+            this.columnNeeds = columnNeeds;
+            this.summaries = new ColumnSummary[columnNames.length];
+            this.view = (rTable != null) ? ColumnView.get() : null;
+        }
+
+        /*
+         * Summarizes a column the first time it is asked for; position is
+         * where to point if it cannot be found.
+         */
+        public ColumnSummary summarize(int slot, int position)
+                throws ParseException {
+            ColumnSummary summary = summaries[slot];
+            if (summary == null) {
+                if (rTable == null) {
+                    throw new ParseException("Results table necessary, but no "
+                            + "results table found!", position);
+                }
+                int index = rTable.getColumnIndex(columnNames[slot]);
                 if (index == ResultsTable.COLUMN_NOT_FOUND) {
-                    throw new ParseException("Invalid column name.");
+                    throw new ParseException("Invalid column name.", position);
                 }
-                ret = rTable.getColumn(index);
-                q.remove();
-                break;
-            } catch (ClassCastException e) {
-                throw new ParseException(
-                        "Found a column ID, but did not have ColumnIDToken, contact developer.");
+                double values[] = view.getColumn(rTable, index, slot);
+                summary = new ColumnSummary(values, values != null ? rTable
+                        .size() : 0, columnNeeds[slot]);
+                summaries[slot] = summary;
             }
-        default:
-            throw new ParseException(
-                    "Expecting a table column ID, but found something else!");
+            return summary;
         }
-        return ret;
+
+        private final ResultsTable rTable;
+
+        private final String columnNames[];
+
+        private final int columnNeeds[];
+
+        private final ColumnSummary summaries[];
+
+        private final ColumnView view;
     }
 
-    protected void getRParen(Queue<BaseToken> q) throws ParseException {
-        BaseToken nextToken = q.poll();
+    /**
+     * Read-only access to the columns of a results table, without copying.
+     * <p>
+     * ResultsTable.getColumn makes a new array every time it is called,
+     * which adds up to a lot of garbage over a search with large tables.
+     * ResultsTable has no accessor for the arrays it keeps its columns in, so
+     * they are read by reflection. If that fails (in some other version of
+     * ImageJ), columns are copied into arrays that are kept per thread and
+     * reused from one object to the next, growing when a table outgrows
+     * them.
+     * <p>
+     * Either way, an array is only good until the table changes, and may be
+     * longer than the table: only the first {@link ResultsTable#size()}
+     * values belong to the column.
+     */
+    protected static class ColumnView {
+        private static final Field COLUMNS_FIELD = findColumnsField();
+
+        private static final ThreadLocal<ColumnView> views = new ThreadLocal<ColumnView>() {
+            @Override
+            protected ColumnView initialValue() {
+                return new ColumnView();
+            }
+        };
 
-        if ((nextToken == null) || (nextToken.getType() != TokenType.RParen)) {
-            throw new ParseException(
-                    "Mismatched parentheses! Expected right parenthesis.");
+        public static ColumnView get() {
+            return views.get();
         }
-    }
 
-    protected static Queue<BaseToken> tokenize(String expr)
-            throws TokenizeException {
-        StreamTokenizer st = new StreamTokenizer(new StringReader(expr));
-        st.eolIsSignificant(false);
-        st.ordinaryChar('-');
-        st.ordinaryChar('/');
-        st.ordinaryChar('.');
-        st.wordChars('_', '_');
-        st.quoteChar(QUOTE_CHAR);
-        st.whitespaceChars(128, 255);
-        st.slashStarComments(true);
-        st.slashSlashComments(true);
-
-        Queue<BaseToken> ret = new LinkedList<BaseToken>();
-
-        getNextToken(st);
-        while (st.ttype != StreamTokenizer.TT_EOF) {
-            BaseToken nextToken;
-
-            switch (st.ttype) {
-            case StreamTokenizer.TT_NUMBER:
-                nextToken = new LiteralToken(st.nval);
-                break;
-            case StreamTokenizer.TT_WORD:
-                nextToken = getNewAggToken(st.sval);
-                break;
-            case StreamTokenizer.TT_EOF:
-                throw new RuntimeException(
-                        "Checking for EOF in tokenizer done incorrectly, contact developer.");
-            case StreamTokenizer.TT_EOL:
-                throw new RuntimeException(
-                        "Checking for EOL in tokenizer done incorrectly, contact developer.");
-            case QUOTE_CHAR:
-                nextToken = new ColumnIdToken(st.sval);
-                break;
-            default:
-                TokenType ttype = TokenType.getTokenType((char) st.ttype);
-                if (ttype == null) {
-                    throw new TokenizeException("Invalid character: "
-                            + (char) st.ttype);
+        /*
+         * The values of a column, or null if it has none; slot keeps apart
+         * the columns used by one expression when they have to be copied.
+         */
+        public double[] getColumn(ResultsTable rTable, int index, int slot) {
+            if (!rTable.columnExists(index)) {
+                return null;
+            }
+            if (COLUMNS_FIELD != null) {
+                try {
+                    return ((double[][]) COLUMNS_FIELD.get(rTable))[index];
+                } catch (IllegalAccessException e) {
+                    // cannot happen once setAccessible has succeeded
                 }
-                nextToken = new BaseToken(ttype);
             }
 
-            ret.add(nextToken);
-            getNextToken(st);
+            int rows = rTable.size();
+            if (slot >= buffers.length) {
+                double grown[][] = new double[slot + 1][];
+                System.arraycopy(buffers, 0, grown, 0, buffers.length);
+                buffers = grown;
+            }
+            double buffer[] = buffers[slot];
+            if (buffer == null || buffer.length < rows) {
+                buffer = new double[Math.max(rows, 16)];
+                buffers[slot] = buffer;
+            }
+            for (int i = 0; i < rows; i++) {
+                buffer[i] = rTable.getValueAsDouble(index, i);
+            }
+            return buffer;
+        }
+
+        private static Field findColumnsField() {
+            try {
+                Field f = ResultsTable.class.getDeclaredField("columns");
+                if (f.getType() != double[][].class) {
+                    return null;
+                }
+                f.setAccessible(true);
+                return f;
+            } catch (Exception e) {
+                Log.info("Copying results table columns: " + e);
+                return null;
+            }
         }
 
-        return ret;
+        private double buffers[][] = new double[0][];
     }
 
-    protected static BaseToken getNewAggToken(String tokenVal)
-            throws TokenizeException {
-        AggregatorType aggType;
-        try {
-            aggType = AggregatorType.valueOf(tokenVal.toUpperCase());
-        } catch (IllegalArgumentException e) {
-            throw new TokenizeException("Unknown command: " + tokenVal);
+    /**
+     * A part of a compiled expression.
+     * <p>
+     * Comparisons and the logical operators give 1 for true and 0 for false,
+     * and take any number other than 0 or NaN as true. The logical operators
+     * and conditionals only evaluate what they need to, so an aggregate
+     * whose value would not matter is never worked out.
+     */
+    protected static abstract class Node {
+        public abstract double eval(Evaluation ev) throws ParseException;
+
+        protected static boolean isTrue(double value) {
+            return value != 0 && value == value;
         }
 
-        return new AggregatorToken(aggType);
+        protected static double valueOf(boolean b) {
+            return b ? 1.0 : 0.0;
+        }
     }
 
-    protected static void getNextToken(StreamTokenizer st) {
-        try {
-            st.nextToken();
-        } catch (IOException e) {
-            e.printStackTrace();
-            throw new RuntimeException(
-                    "Received IO Exception from StringReader, contact developer.");
+    protected static class LiteralNode extends Node {
+        public LiteralNode(double value) {
+            this.value = value;
         }
-    }
 
-    protected static enum TokenType {
-        Literal, OpPlus('+'), OpMinus('-'), OpMult('*'), OpDiv('/'), LParen('('), RParen(
-                ')'), Aggregator, ColumnID;
+        public double eval(Evaluation ev) {
+            return value;
+        }
 
-        TokenType() {
-            hasChar = false;
-            myChar = ' ';
+        private final double value;
+    }
+
+    protected static class NegateNode extends Node {
+        public NegateNode(Node operand) {
+            this.operand = operand;
         }
 
-        TokenType(char c) {
-            hasChar = true;
-            myChar = c;
+        public double eval(Evaluation ev) throws ParseException {
+            return -operand.eval(ev);
         }
 
-        public static TokenType getTokenType(char c) {
-            return charToToken.get(c);
+        private final Node operand;
+    }
+
+    protected static class BinaryNode extends Node {
+        public BinaryNode(char op, Node left, Node right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
         }
 
-        public char getAssocChar() {
-            if (hasChar)
-                return myChar;
-            else
-                return 0;
+        public double eval(Evaluation ev) throws ParseException {
+            double l = left.eval(ev);
+            double r = right.eval(ev);
+            switch (op) {
+            case '+':
+                return l + r;
+            case '-':
+                return l - r;
+            case '*':
+                return l * r;
+            default:
+                return l / r;
+            }
         }
 
-        private final boolean hasChar;
+        private final char op;
 
-        private final char myChar;
+        private final Node left;
 
-        private static final Map<Character, TokenType> charToToken = new HashMap<Character, TokenType>();
+        private final Node right;
+    }
 
-        static {
-            for (TokenType ttype : TokenType.values()) {
-                if (ttype.hasChar) {
-                    charToToken.put(ttype.myChar, ttype);
-                }
+    protected static class ComparisonNode extends Node {
+        public ComparisonNode(TokenType op, Node left, Node right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        public double eval(Evaluation ev) throws ParseException {
+            double l = left.eval(ev);
+            double r = right.eval(ev);
+            switch (op) {
+            case Less:
+                return valueOf(l < r);
+            case LessEq:
+                return valueOf(l <= r);
+            case Greater:
+                return valueOf(l > r);
+            case GreaterEq:
+                return valueOf(l >= r);
+            case Equal:
+                return valueOf(l == r);
+            default:
+                return valueOf(l != r);
             }
         }
+
+        private final TokenType op;
+
+        private final Node left;
+
+        private final Node right;
     }
 
-    protected static class BaseToken {
-        public BaseToken(TokenType type) {
-            this.type = type;
+    protected static class AndNode extends Node {
+        public AndNode(Node left, Node right) {
+            this.left = left;
+            this.right = right;
         }
 
-        public TokenType getType() {
-            return type;
+        public double eval(Evaluation ev) throws ParseException {
+            return valueOf(isTrue(left.eval(ev)) && isTrue(right.eval(ev)));
         }
 
-        public String toString() {
-            char c = type.getAssocChar();
+        private final Node left;
 
-            if (c != 0) {
-                return Character.toString(c);
-            } else {
-                return "";
-            }
+        private final Node right;
+    }
+
+    protected static class OrNode extends Node {
+        public OrNode(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        public double eval(Evaluation ev) throws ParseException {
+            return valueOf(isTrue(left.eval(ev)) || isTrue(right.eval(ev)));
         }
 
-        private final TokenType type;
+        private final Node left;
+
+        private final Node right;
     }
 
-    protected static class LiteralToken extends BaseToken {
-        public LiteralToken(double value) {
-            super(TokenType.Literal);
-            this.value = value;
+    protected static class NotNode extends Node {
+        public NotNode(Node operand) {
+            this.operand = operand;
         }
 
-        public double getValue() {
-            return value;
+        public double eval(Evaluation ev) throws ParseException {
+            return valueOf(!isTrue(operand.eval(ev)));
         }
 
-        public String toString() {
-            return Double.toString(value);
+        private final Node operand;
+    }
+
+    protected static class ConditionalNode extends Node {
+        public ConditionalNode(Node condition, Node ifTrue, Node ifFalse) {
+            this.condition = condition;
+            this.ifTrue = ifTrue;
+            this.ifFalse = ifFalse;
         }
 
-        private final double value;
+        public double eval(Evaluation ev) throws ParseException {
+            return isTrue(condition.eval(ev)) ? ifTrue.eval(ev) : ifFalse
+                    .eval(ev);
+        }
+
+        private final Node condition;
+
+        private final Node ifTrue;
+
+        private final Node ifFalse;
     }
 
-    protected static class AggregatorToken extends BaseToken {
-        public AggregatorToken(AggregatorType aggType) {
-            super(TokenType.Aggregator);
+    protected static class AggregatorNode extends Node {
+        public AggregatorNode(AggregatorType aggType, double args[], int slot,
+                int position) {
             this.aggType = aggType;
+            this.args = args;
+            this.slot = slot;
+            this.position = position;
         }
 
-        public AggregatorType getAggType() {
-            return aggType;
-        }
-
-        public String toString() {
-            return aggType.toString().toLowerCase();
+        public double eval(Evaluation ev) throws ParseException {
+            return aggType.get(ev.summarize(slot, position), args);
         }
 
         private final AggregatorType aggType;
+
+        private final double args[];
+
+        /* which of the expression's columns */
+        private final int slot;
+
+        private final int position;
     }
 
-    protected static class ColumnIdToken extends BaseToken {
-        public ColumnIdToken(String colName) {
-            super(TokenType.ColumnID);
-            this.colName = colName;
+    /**
+     * Splits an expression into tokens, one at a time, without allocating
+     * anything for them: the type and value of the current token are kept in
+     * fields. Accepts what the StreamTokenizer it replaces accepted: numbers
+     * without exponents, aggregator names in any case, column names in
+     * single quotes, the operators and parentheses, and C and C++ style
+     * comments; and commas, which separate aggregator arguments, and the
+     * comparisons, conditionals and logical keywords (and, or, not).
+     */
+    protected static class Lexer {
+        public Lexer(String text) {
+            this.text = text;
         }
 
-        public String getName() {
-            return colName;
+        public TokenType type() {
+            return type;
         }
 
-        public static String makeColExpr(String s) {
-            return QUOTE_CHAR + s + QUOTE_CHAR;
+        /** Where the current token starts in the text. */
+        public int start() {
+            return start;
         }
 
-        public String toString() {
-            return makeColExpr(colName);
+        public double number() {
+            return number;
         }
 
-        private final String colName;
-    }
+        public AggregatorType aggregator() {
+            return aggregator;
+        }
 
-    protected static enum AggregatorType {
-        /* these identifiers must be uppercase */
-        SUM(new SumEngine()), COUNT(new CountEngine()), AVERAGE(new AvgEngine()), PRODUCT(
-                new ProdEngine()), MIN(new MinEngine()), MAX(new MaxEngine());
+        /** The name of the current column token, with escapes resolved. */
+        public String column() {
+            if (!escaped) {
+                return text.substring(valueStart, valueEnd);
+            }
+            StringBuilder sb = new StringBuilder(valueEnd - valueStart);
+            for (int i = valueStart; i < valueEnd; i++) {
+                char c = text.charAt(i);
+                if (c == '\\' && i + 1 < valueEnd) {
+                    c = unescape(text.charAt(++i));
+                }
+                sb.append(c);
+            }
+            return sb.toString();
+        }
+
+        public TokenType next() throws ParseException {
+            skipSpaceAndComments();
+            start = pos;
+            if (pos >= text.length()) {
+                return type = TokenType.EOF;
+            }
+
+            char c = text.charAt(pos);
+            if (c >= '0' && c <= '9') {
+                lexNumber();
+                return type = TokenType.Literal;
+            }
+            if (isWordStart(c)) {
+                return type = lexWord();
+            }
+            if (c == QUOTE_CHAR) {
+                lexColumn();
+                return type = TokenType.ColumnID;
+            }
 
-        AggregatorType(AggregatorEngine eng) {
-            this.eng = eng;
+            if (pos + 1 < text.length() && text.charAt(pos + 1) == '=') {
+                TokenType withEquals = null;
+                switch (c) {
+                case '<':
+                    withEquals = TokenType.LessEq;
+                    break;
+                case '>':
+                    withEquals = TokenType.GreaterEq;
+                    break;
+                case '=':
+                    withEquals = TokenType.Equal;
+                    break;
+                case '!':
+                    withEquals = TokenType.NotEqual;
+                    break;
+                }
+                if (withEquals != null) {
+                    pos += 2;
+                    return type = withEquals;
+                }
+            }
+
+            TokenType t = TokenType.getTokenType(c);
+            if (t == null) {
+                throw new ParseException("Invalid character: " + c, pos);
+            }
+            pos++;
+            return type = t;
         }
 
-        public double run(float[] values) {
-            return eng.run(values);
+        private void skipSpaceAndComments() {
+            int len = text.length();
+            while (pos < len) {
+                char c = text.charAt(pos);
+                if (c <= ' ' || (c >= 128 && c <= 255)) {
+                    pos++;
+                } else if (c == '/' && pos + 1 < len
+                        && text.charAt(pos + 1) == '/') {
+                    while (pos < len && text.charAt(pos) != '\n'
+                            && text.charAt(pos) != '\r') {
+                        pos++;
+                    }
+                } else if (c == '/' && pos + 1 < len
+                        && text.charAt(pos + 1) == '*') {
+                    int end = text.indexOf("*/", pos + 2);
+                    pos = (end < 0) ? len : end + 2;
+                } else {
+                    return;
+                }
+            }
         }
 
-        private final AggregatorEngine eng;
+        /* digits with at most one '.', worked out like StreamTokenizer */
+        private void lexNumber() {
+            double v = 0;
+            int decimals = 0;
+            boolean seenDot = false;
+            while (pos < text.length()) {
+                char c = text.charAt(pos);
+                if (c == '.' && !seenDot) {
+                    seenDot = true;
+                } else if (c >= '0' && c <= '9') {
+                    v = v * 10 + (c - '0');
+                    if (seenDot) {
+                        decimals++;
+                    }
+                } else {
+                    break;
+                }
+                pos++;
+            }
+            if (decimals > 0) {
+                double denom = 10;
+                while (--decimals > 0) {
+                    denom *= 10;
+                }
+                v = v / denom;
+            }
+            number = v;
+        }
 
-    }
+        /* an aggregator name or one of the keywords, in any case */
+        private TokenType lexWord() throws ParseException {
+            int wordStart = pos;
+            while (pos < text.length() && isWordPart(text.charAt(pos))) {
+                pos++;
+            }
+            int len = pos - wordStart;
+            for (TokenType t : KEYWORDS) {
+                String name = t.name();
+                if (name.length() == len
+                        && text.regionMatches(true, wordStart, name, 0, len)) {
+                    return t;
+                }
+            }
+            for (AggregatorType t : AGGREGATORS) {
+                String name = t.name();
+                if (name.length() == len
+                        && text.regionMatches(true, wordStart, name, 0, len)) {
+                    aggregator = t;
+                    return TokenType.Aggregator;
+                }
+            }
+            throw new ParseException("Unknown command: "
+                    + text.substring(wordStart, pos), wordStart);
+        }
 
-    protected static abstract class AggregatorEngine {
-        public abstract double run(float[] values);
-    }
+        /* an unterminated name runs to the end of the line */
+        private void lexColumn() {
+            pos++;
+            valueStart = pos;
+            escaped = false;
+            while (pos < text.length()) {
+                char c = text.charAt(pos);
+                if (c == QUOTE_CHAR || c == '\n' || c == '\r') {
+                    break;
+                }
+                if (c == '\\' && pos + 1 < text.length()) {
+                    escaped = true;
+                    pos++;
+                }
+                pos++;
+            }
+            valueEnd = pos;
+            if (pos < text.length() && text.charAt(pos) == QUOTE_CHAR) {
+                pos++;
+            }
+        }
+
+        private static boolean isWordStart(char c) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+        }
+
+        private static boolean isWordPart(char c) {
+            return isWordStart(c) || (c >= '0' && c <= '9');
+        }
 
-    protected static class SumEngine extends AggregatorEngine {
-        public double run(float[] values) {
-            double ret = 0.0;
-            for (double value : values) {
-                ret += value;
+        private static char unescape(char c) {
+            switch (c) {
+            case 'a':
+                return 0x7;
+            case 'b':
+                return '\b';
+            case 'f':
+                return 0xC;
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'v':
+                return 0xB;
+            default:
+                return c;
             }
-            return ret;
         }
+
+        private static final TokenType KEYWORDS[] = { TokenType.And,
+                TokenType.Or, TokenType.Not };
+
+        private static final AggregatorType AGGREGATORS[] = AggregatorType
+                .values();
+
+        private final String text;
+
+        private int pos;
+
+        private TokenType type;
+
+        private int start;
+
+        private double number;
+
+        private AggregatorType aggregator;
+
+        private int valueStart;
+
+        private int valueEnd;
+
+        private boolean escaped;
     }
 
-    protected static class CountEngine extends AggregatorEngine {
-        public double run(float[] values) {
-            return values.length;
+    protected static enum TokenType {
+        Literal, OpPlus('+'), OpMinus('-'), OpMult('*'), OpDiv('/'), LParen('('), RParen(
+                ')'), Comma(','), Aggregator, ColumnID, EOF,
+        /* the lexer puts together the two-character comparisons */
+        Less('<'), LessEq, Greater('>'), GreaterEq, Equal, NotEqual,
+        /* spelled out as words */
+        And, Or, Not, Question('?'), Colon(':');
+
+        TokenType() {
+            hasChar = false;
+            myChar = ' ';
         }
-    }
 
-    protected static class AvgEngine extends AggregatorEngine {
-        public double run(float[] values) {
-            double sum = 0.0;
-            for (double value : values) {
-                sum += value;
+        TokenType(char c) {
+            hasChar = true;
+            myChar = c;
+        }
+
+        public static TokenType getTokenType(char c) {
+            return c < charToToken.length ? charToToken[c] : null;
+        }
+
+        public char getAssocChar() {
+            if (hasChar)
+                return myChar;
+            else
+                return 0;
+        }
+
+        public boolean isComparison() {
+            switch (this) {
+            case Less:
+            case LessEq:
+            case Greater:
+            case GreaterEq:
+            case Equal:
+            case NotEqual:
+                return true;
+            default:
+                return false;
             }
-            return sum / ((double) values.length);
         }
-    }
 
-    protected static class ProdEngine extends AggregatorEngine {
-        public double run(float[] values) {
-            double ret = 1.0;
-            for (double value : values) {
-                ret *= value;
+        private final boolean hasChar;
+
+        private final char myChar;
+
+        private static final TokenType charToToken[] = new TokenType[128];
+
+        static {
+            for (TokenType ttype : TokenType.values()) {
+                if (ttype.hasChar) {
+                    charToToken[ttype.myChar] = ttype;
+                }
             }
-            return ret;
         }
     }
 
-    protected static class MinEngine extends AggregatorEngine {
-        public double run(float[] values) {
-            if (values.length == 0)
-                return 0.0;
-            double ret = Double.MAX_VALUE;
-            for (double value : values) {
-                if (value < ret)
-                    ret = value;
+    protected static String makeColExpr(String s) {
+        return QUOTE_CHAR + s + QUOTE_CHAR;
+    }
+
+    protected static enum AggregatorType {
+        /* these identifiers must be uppercase */
+        SUM(ColumnSummary.SUM) {
+            double get(ColumnSummary s, double args[]) {
+                return s.sum;
             }
-            return ret;
+        },
+        COUNT(0) {
+            double get(ColumnSummary s, double args[]) {
+                return s.count;
+            }
+        },
+        AVERAGE(ColumnSummary.SUM) {
+            double get(ColumnSummary s, double args[]) {
+                return s.sum / s.count;
+            }
+        },
+        PRODUCT(ColumnSummary.PRODUCT) {
+            double get(ColumnSummary s, double args[]) {
+                return s.product;
+            }
+        },
+        MIN(ColumnSummary.MIN) {
+            double get(ColumnSummary s, double args[]) {
+                return s.count == 0 ? 0.0 : s.min;
+            }
+        },
+        MAX(ColumnSummary.MAX) {
+            double get(ColumnSummary s, double args[]) {
+                return s.count == 0 ? 0.0 : s.max;
+            }
+        },
+        MEDIAN(ColumnSummary.ORDER) {
+            double get(ColumnSummary s, double args[]) {
+                return s.percentile(50);
+            }
+        },
+        /* of a sample, so divided by count - 1 */
+        VARIANCE(ColumnSummary.VARIANCE) {
+            double get(ColumnSummary s, double args[]) {
+                return s.count < 2 ? 0.0 : s.m2 / (s.count - 1);
+            }
+        },
+        STDDEV(ColumnSummary.VARIANCE) {
+            double get(ColumnSummary s, double args[]) {
+                return Math.sqrt(VARIANCE.get(s, args));
+            }
+        },
+        /* PERCENTILE('column', p), with p from 0 to 100 */
+        PERCENTILE(ColumnSummary.ORDER, "50") {
+            double get(ColumnSummary s, double args[]) {
+                return s.percentile(args[0]);
+            }
+
+            void check(double args[]) {
+                if (!(args[0] >= 0 && args[0] <= 100)) {
+                    throw new IllegalArgumentException(
+                            "The percentile must be between 0 and 100.");
+                }
+            }
+        },
+        /* HISTOGRAM('column', lo, hi): how many values are in [lo, hi) */
+        HISTOGRAM(ColumnSummary.VALUES, "0", "100") {
+            double get(ColumnSummary s, double args[]) {
+                return s.countBetween(args[0], args[1]);
+            }
+        };
+
+        AggregatorType(int needs, String... exampleArgs) {
+            this.needs = needs;
+            this.exampleArgs = exampleArgs;
+        }
+
+        public double run(double[] values, double... args) {
+            return get(new ColumnSummary(values, values.length, needs), args);
+        }
+
+        /** Which of the {@link ColumnSummary} statistics this one needs. */
+        public int getNeeds() {
+            return needs;
         }
+
+        /** How many numbers follow the column name. */
+        public int getArity() {
+            return exampleArgs.length;
+        }
+
+        /** Arguments to fill in when inserting this from the dialog. */
+        public String[] getExampleArgs() {
+            return exampleArgs.clone();
+        }
+
+        abstract double get(ColumnSummary s, double args[]);
+
+        /* throws IllegalArgumentException if the arguments make no sense */
+        void check(double args[]) {
+        }
+
+        private final int needs;
+
+        private final String exampleArgs[];
     }
 
-    protected static class MaxEngine extends AggregatorEngine {
-        public double run(float[] values) {
-            if (values.length == 0)
+    /**
+     * Everything the aggregators need from one column, found in as few
+     * passes as possible: minimum and maximum together with the sum, the sum
+     * alone when nothing else is needed, and the product (which is rarely
+     * used) on its own. An expression that aggregates the same column several
+     * times summarizes it once.
+     * <p>
+     * The loops are unrolled four ways with independent accumulators so the
+     * JIT can keep several additions in flight; the sum is therefore added
+     * up in a different order than a plain loop would, which can change its
+     * last bits.
+     * <p>
+     * Medians and percentiles are found by radix selection, which is exact
+     * and takes linear time without sorting: one pass counts the values by
+     * the top bits of their floating point representation, and then for each
+     * percentile another pass gathers the few values in the buckets holding
+     * its ranks and selects among them. The variance is worked out from sums
+     * of differences from the first value, which keeps it accurate when the
+     * values are large compared to their spread.
+     * <p>
+     * Values are rounded to float as they are read, as they were when
+     * columns came from ResultsTable.getColumn, so scores do not change.
+     */
+    protected static class ColumnSummary {
+        public static final int SUM = 1;
+
+        public static final int PRODUCT = 2;
+
+        public static final int MIN = 4;
+
+        public static final int MAX = 8;
+
+        public static final int VARIANCE = 16;
+
+        /* order statistics */
+        public static final int ORDER = 32;
+
+        /* the values themselves, for aggregators that take arguments */
+        public static final int VALUES = 64;
+
+        private static final int BUCKET_BITS = 14;
+
+        /* count is how many of the values are in the column */
+        public ColumnSummary(double values[], int count, int needs) {
+            this.count = count;
+            if ((needs & (MIN | MAX)) != 0) {
+                scan(values);
+            } else if ((needs & SUM) != 0) {
+                add(values);
+            }
+            if ((needs & PRODUCT) != 0) {
+                multiply(values);
+            }
+            if ((needs & VARIANCE) != 0) {
+                moments(values);
+            }
+            if ((needs & (ORDER | VALUES)) != 0) {
+                this.values = values;
+            }
+        }
+
+        /*
+         * Linearly interpolated between the closest ranks, like a
+         * spreadsheet's PERCENTILE; 0 for an empty column.
+         */
+        double percentile(double p) {
+            if (buckets == null) {
+                countBuckets();
+            }
+            int n = ordered;
+            if (n == 0) {
                 return 0.0;
-            double ret = Double.MIN_VALUE;
-            for (double value : values) {
-                if (value > ret)
-                    ret = value;
             }
-            return ret;
+            double rank = (n - 1) * p / 100;
+            int k = (int) rank;
+            int last = (k + 1 < n && rank != k) ? k + 1 : k;
+
+            // the buckets holding ranks k and last, and how many come before
+            int first = 0;
+            int before = 0;
+            while (before + buckets[first] <= k) {
+                before += buckets[first++];
+            }
+            int end = first;
+            int through = before + buckets[first];
+            while (through <= last) {
+                through += buckets[++end];
+            }
+
+            // an unsigned comparison checks both ends of the range at once
+            float within[] = new float[through - before];
+            double vs[] = values;
+            int span = end - first + Integer.MIN_VALUE;
+            int m = 0;
+            for (int i = 0; i < count; i++) {
+                float v = (float) vs[i];
+                if (bucket(v) - first + Integer.MIN_VALUE <= span && v == v) {
+                    within[m++] = v;
+                }
+            }
+
+            double lo = select(within, k - before);
+            if (last == k) {
+                return lo;
+            }
+            // everything after k is at least as large once k is selected
+            float hi = within[k - before + 1];
+            for (int i = k - before + 2; i < within.length; i++) {
+                hi = within[i] < hi ? within[i] : hi;
+            }
+            return lo + (rank - k) * (hi - lo);
         }
-    }
 
-    protected static class TokenizeException extends Exception {
-        public TokenizeException(String msg) {
-            super(msg);
+        int countBetween(double lo, double hi) {
+            int c0 = 0, c1 = 0;
+            int n = count;
+            int i = 0;
+            for (; i <= n - 2; i += 2) {
+                float a = (float) values[i];
+                float b = (float) values[i + 1];
+                c0 += (a >= lo && a < hi) ? 1 : 0;
+                c1 += (b >= lo && b < hi) ? 1 : 0;
+            }
+            if (i < n) {
+                float a = (float) values[i];
+                c0 += (a >= lo && a < hi) ? 1 : 0;
+            }
+            return c0 + c1;
         }
-    }
 
-    protected static class ParseException extends Exception {
-        public ParseException(String msg) {
-            super(msg);
+        /* NaNs are skipped by min and max, as they always were */
+        private void scan(double values[]) {
+            double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            float lo0 = Float.POSITIVE_INFINITY;
+            float lo1 = lo0, lo2 = lo0, lo3 = lo0;
+            float hi0 = Float.NEGATIVE_INFINITY;
+            float hi1 = hi0, hi2 = hi0, hi3 = hi0;
+
+            int n = count;
+            int i = 0;
+            for (; i <= n - 4; i += 4) {
+                float a = (float) values[i];
+                float b = (float) values[i + 1];
+                float c = (float) values[i + 2];
+                float d = (float) values[i + 3];
+                s0 += a;
+                s1 += b;
+                s2 += c;
+                s3 += d;
+                lo0 = a < lo0 ? a : lo0;
+                lo1 = b < lo1 ? b : lo1;
+                lo2 = c < lo2 ? c : lo2;
+                lo3 = d < lo3 ? d : lo3;
+                hi0 = a > hi0 ? a : hi0;
+                hi1 = b > hi1 ? b : hi1;
+                hi2 = c > hi2 ? c : hi2;
+                hi3 = d > hi3 ? d : hi3;
+            }
+            for (; i < n; i++) {
+                float a = (float) values[i];
+                s0 += a;
+                lo0 = a < lo0 ? a : lo0;
+                hi0 = a > hi0 ? a : hi0;
+            }
+
+            sum = (s0 + s1) + (s2 + s3);
+            min = Math.min(Math.min(lo0, lo1), Math.min(lo2, lo3));
+            max = Math.max(Math.max(hi0, hi1), Math.max(hi2, hi3));
+        }
+
+        private void add(double values[]) {
+            double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            int n = count;
+            int i = 0;
+            for (; i <= n - 4; i += 4) {
+                s0 += (float) values[i];
+                s1 += (float) values[i + 1];
+                s2 += (float) values[i + 2];
+                s3 += (float) values[i + 3];
+            }
+            for (; i < n; i++) {
+                s0 += (float) values[i];
+            }
+            sum = (s0 + s1) + (s2 + s3);
         }
-    }
 
-    private static class ReferenceString {
-        public ReferenceString(Collection<BaseToken> tokens) {
-            StringBuilder builder = new StringBuilder();
-            locs = new int[tokens.size() + 1];
+        private void multiply(double values[]) {
+            double p0 = 1, p1 = 1, p2 = 1, p3 = 1;
+            int n = count;
+            int i = 0;
+            for (; i <= n - 4; i += 4) {
+                p0 *= (float) values[i];
+                p1 *= (float) values[i + 1];
+                p2 *= (float) values[i + 2];
+                p3 *= (float) values[i + 3];
+            }
+            for (; i < n; i++) {
+                p0 *= (float) values[i];
+            }
+            product = (p0 * p1) * (p2 * p3);
+        }
 
-            int i = tokens.size();
-            for (BaseToken token : tokens) {
-                locs[i] = builder.length();
-                i--;
-                builder.append(token.toString());
-                builder.append(' ');
+        private void moments(double values[]) {
+            int n = count;
+            if (n == 0) {
+                return;
+            }
+            double shift = (float) values[0];
+            double d0 = 0, d1 = 0, q0 = 0, q1 = 0;
+            int i = 0;
+            for (; i <= n - 2; i += 2) {
+                double a = (float) values[i] - shift;
+                double b = (float) values[i + 1] - shift;
+                d0 += a;
+                d1 += b;
+                q0 += a * a;
+                q1 += b * b;
+            }
+            if (i < n) {
+                double a = (float) values[i] - shift;
+                d0 += a;
+                q0 += a * a;
             }
+            double d = d0 + d1;
+            m2 = Math.max(0, (q0 + q1) - d * d / n);
+        }
+
+        /* NaNs are left out, so their ranks do not count */
+        private void countBuckets() {
+            buckets = new int[1 << BUCKET_BITS];
+            int n = 0;
+            for (int i = 0; i < count; i++) {
+                float v = (float) values[i];
+                if (v == v) {
+                    buckets[bucket(v)]++;
+                    n++;
+                }
+            }
+            ordered = n;
+        }
 
-            locs[0] = builder.length();
-            str = builder.toString();
+        /*
+         * The top bits of a float, flipped so that buckets are in the same
+         * order as the values they hold.
+         */
+        private static int bucket(float v) {
+            int bits = Float.floatToRawIntBits(v);
+            bits ^= (bits >> 31) & 0x7fffffff;
+            return (bits >>> (32 - BUCKET_BITS)) ^ (1 << (BUCKET_BITS - 1));
         }
 
-        public String toString() {
-            return str;
+        /*
+         * Hoare's selection: puts the k-th smallest value at a[k], smaller
+         * ones before it and larger ones after it, and returns it.
+         */
+        private static float select(float a[], int k) {
+            int lo = 0;
+            int hi = a.length - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                // median of three, which also guards the scans below
+                if (a[mid] < a[lo]) {
+                    swap(a, lo, mid);
+                }
+                if (a[hi] < a[lo]) {
+                    swap(a, lo, hi);
+                }
+                if (a[hi] < a[mid]) {
+                    swap(a, mid, hi);
+                }
+                float pivot = a[mid];
+                int i = lo;
+                int j = hi;
+                while (i <= j) {
+                    while (a[i] < pivot) {
+                        i++;
+                    }
+                    while (a[j] > pivot) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        swap(a, i, j);
+                        i++;
+                        j--;
+                    }
+                }
+                if (k <= j) {
+                    hi = j;
+                } else if (k >= i) {
+                    lo = i;
+                } else {
+                    break;
+                }
+            }
+            return a[k];
         }
 
-        public int location(int tokensLeft) {
-            return locs[tokensLeft];
+        private static void swap(float a[], int i, int j) {
+            float t = a[i];
+            a[i] = a[j];
+            a[j] = t;
         }
 
-        private final String str;
+        final int count;
+
+        double sum;
+
+        double product;
+
+        double min;
+
+        double max;
+
+        /* sum of squared differences from the mean */
+        double m2;
 
-        private final int locs[];
+        private double values[];
 
+        /* counts of the non-NaN values by bucket, made on first use */
+        private int buckets[];
+
+        /* how many values are not NaN */
+        private int ordered;
+    }
+
+    protected static class ParseException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public ParseException(String msg, int position) {
+            super(msg);
+            this.position = position;
+        }
+
+        /** Where in the expression text the problem was found. */
+        public int getPosition() {
+            return position;
+        }
+
+        private final int position;
     }
 
     private static final String EXPRESSION_FIELD = "Expression";
 
+    private static final String ERROR_PREFIX = "Error!\n";
+
     private static final char QUOTE_CHAR = '\'';
 
     private ResultsTable rTable;
@@ -23,11 +23,13 @@
 #include <stdio.h>
 #include <stdlib.h>
 #include <string.h>
+#include <sys/mman.h>
 #include <sys/stat.h>
 #include <sys/types.h>
 #include <sys/wait.h>
 #include <signal.h>
 #include <unistd.h>
+#include <utime.h>
 #include <assert.h>
 #include <glib.h>
 #include <archive.h>
@@ -38,16 +40,158 @@
 #include "imagej-bin.h"
 #include "ijloader-bin.h"
 #include "diamond_filter-bin.h"
+#include "cds-bin.h"
 
 #define DIAMOND_FILTER_FILE "diamond_filter.jar"
 #define IJLOADER_FILE "ijloader.jar"
 
+// the class data sharing archive made by train-cds.py, and the
+// modification time the jars had when it was made; the JVM only uses the
+// archive if they still have it
+#define CDS_ARCHIVE_FILE "ijfind.jsa"
+#ifndef CDS_JAR_MTIME
+#define CDS_JAR_MTIME 1000000000
+#endif
+
+// sent instead of the first image length to ask IJLoader for the newer
+// protocol; see IJLoader.java
+#define IJLOADER_HELLO 0x80494A4C
+#define IJLOADER_PROTOCOL_VERSION 2
+
+// message types of protocol version 2
+#define IJLOADER_MSG_OBJECT 1
+// one macro name, then many objects; the filter is handed one object at a
+// time, so it never sends these itself
+#define IJLOADER_MSG_BATCH 2
+// asks for the per-macro phase timings; answered with a text report
+#define IJLOADER_MSG_STATS 3
+// an object in the shared memory file rather than in the message
+#define IJLOADER_MSG_MAPPED_OBJECT 4
+// the two object messages with a count and that many macro names; the
+// object is decoded once, and the results of all the macros come back in
+// one frame, scored with the lowest of them
+#define IJLOADER_MSG_MULTI_OBJECT 5
+#define IJLOADER_MSG_MULTI_MAPPED_OBJECT 6
+
+// optional protocol features
+#define IJLOADER_FEATURE_BINARY_RESULTS (1 << 0)
+#define IJLOADER_FEATURE_BATCH (1 << 1)
+#define IJLOADER_FEATURE_STATS (1 << 2)
+#define IJLOADER_FEATURE_SHARED_MEMORY (1 << 3)
+#define IJLOADER_FEATURE_MULTI_MACRO (1 << 4)
+
+// the shared memory file grows in steps of this many bytes
+#define SHM_STEP (1 << 20)
+
+// binary result frames and attribute records
+#define IJLOADER_FRAME_RESULT 1
+#define IJLOADER_FRAME_STATS 2
+#define IJLOADER_ATTR_STRING 1
+#define IJLOADER_ATTR_BINARY 2
+
 struct filter_instance {
    FILE *ij_to_file;
    FILE *ij_from_file;
-   const char *macro_name;
+   const char * const *macro_names;
+   int num_macros;
+   uint32_t next_request_id;
+   unsigned int features;
+   // objects are copied here and IJLoader maps them, if shm_fd >= 0
+   int shm_fd;
+   uint8_t *shm_data;
+   size_t shm_size;
 };
 
+static int getenv_int(const char *name, int def)
+{
+   const char *val = getenv(name);
+   if (val == NULL || *val == '\0') {
+     return def;
+   }
+   return atoi(val);
+}
+
+// passes an integer environment variable on to IJLoader, if it is set
+static void add_int_property(GPtrArray *args, const char *env_name,
+			     const char *property)
+{
+   int val = getenv_int(env_name, 0);
+   if (val > 0) {
+     g_ptr_array_add(args, g_strdup_printf("-D%s=%d", property, val));
+   }
+}
+
+// passes an environment variable on to IJLoader as is, if it is set
+static void add_string_property(GPtrArray *args, const char *env_name,
+				const char *property)
+{
+   const char *val = getenv(env_name);
+   if (val != NULL && *val != '\0') {
+     g_ptr_array_add(args, g_strdup_printf("-D%s=%s", property, val));
+   }
+}
+
+static void set_mtime(const char *path, time_t mtime)
+{
+   struct utimbuf times = { mtime, mtime };
+   if (utime(path, &times) < 0) {
+     perror(path);
+   }
+}
+
+static void transmit_int(uint32_t val, FILE *fp)
+{
+   uint32_t net_val = htonl(val);
+   fwrite(&net_val, sizeof(net_val), 1, fp);
+}
+
+static void negotiate_protocol(struct filter_instance *inst)
+{
+   char *lineptr = NULL;
+   size_t n = 0;
+   int version;
+   unsigned int features;
+
+   unsigned int wanted = 0;
+   if (!getenv_int("IJFIND_TEXT_PROTOCOL", 0)) {
+     wanted |= IJLOADER_FEATURE_BINARY_RESULTS;
+   }
+   if (inst->shm_fd >= 0) {
+     wanted |= IJLOADER_FEATURE_SHARED_MEMORY;
+   }
+   if (inst->num_macros > 1) {
+     wanted |= IJLOADER_FEATURE_MULTI_MACRO;
+   }
+
+   transmit_int(IJLOADER_HELLO, inst->ij_to_file);
+   transmit_int(IJLOADER_PROTOCOL_VERSION, inst->ij_to_file);
+   transmit_int(wanted, inst->ij_to_file);
+   fflush(inst->ij_to_file);
+
+   // a JVM too old for -Xlog may still warn on stdout before the greeting
+   ssize_t len;
+   while ((len = getline(&lineptr, &n, inst->ij_from_file)) >= 0 &&
+	  strncmp(lineptr, "HELLO ", 6) != 0) {
+     fprintf(stderr, "IJLoader: %s", lineptr);
+   }
+   if (len < 0 ||
+       sscanf(lineptr, "HELLO %d %u", &version, &features) != 2 ||
+       version != IJLOADER_PROTOCOL_VERSION) {
+     fprintf(stderr, "Bad greeting from IJLoader: %s\n",
+	     len >= 0 ? lineptr : "(none)");
+     abort();
+   }
+   printf("IJLoader speaks protocol version %d, features %u\n",
+	  version, features);
+   inst->features = features;
+   free(lineptr);
+
+   if (inst->num_macros > 1 && !(features & IJLOADER_FEATURE_MULTI_MACRO)) {
+     fprintf(stderr, "IJLoader cannot run several macros per object\n");
+     abort();
+   }
+}
+
 static void transmit_image(lf_obj_handle_t ohandle, FILE *fp)
 {
    const void *obj_data;
@@ -62,6 +206,88 @@ static void transmit_image(lf_obj_handle_t ohandle, FILE *fp)
    fwrite(obj_data, data_len, 1, fp);
 }
 
+// creates the file objects are passed to IJLoader in, returning its
+// descriptor and path, or -1 if it cannot be made
+static int create_shm_file(char **path)
+{
+   const char *dir = getenv("IJFIND_SHM_DIR");
+   if (dir == NULL || *dir == '\0') {
+     dir = "/dev/shm";
+   }
+   *path = g_strdup_printf("%s/ijfind-XXXXXX", dir);
+   int fd = mkstemp(*path);
+   if (fd < 0) {
+     perror(*path);
+     g_free(*path);
+     *path = NULL;
+   }
+   return fd;
+}
+
+static void close_shm(struct filter_instance *inst)
+{
+   if (inst->shm_data != NULL) {
+     munmap(inst->shm_data, inst->shm_size);
+   }
+   if (inst->shm_fd >= 0) {
+     close(inst->shm_fd);
+   }
+   inst->shm_fd = -1;
+   inst->shm_data = NULL;
+   inst->shm_size = 0;
+}
+
+// copies the object into the shared memory file, growing it first if
+// needed, and sends where it is; returns false if it cannot, and the
+// object has to go down the pipe
+static bool transmit_mapped_image(struct filter_instance *inst,
+				  lf_obj_handle_t ohandle, uint32_t msg_type,
+				  uint32_t request_id)
+{
+   const void *obj_data;
+   size_t data_len;
+
+   lf_ref_attr(ohandle, "", &data_len, &obj_data);
+   if (data_len > INT32_MAX - SHM_STEP) {
+     return false;
+   }
+
+   if (data_len > inst->shm_size) {
+     size_t size = (data_len + SHM_STEP - 1) / SHM_STEP * SHM_STEP;
+     // allocate rather than just extend, so a full tmpfs is an error
+     // here and not a SIGBUS in memcpy
+     int err = posix_fallocate(inst->shm_fd, 0, size);
+     if (err != 0) {
+       fprintf(stderr, "Cannot grow shared memory to %zu bytes: %s\n",
+	       size, strerror(err));
+       return false;
+     }
+     if (inst->shm_data != NULL) {
+       munmap(inst->shm_data, inst->shm_size);
+     }
+     inst->shm_data = mmap(NULL, size, PROT_READ | PROT_WRITE, MAP_SHARED,
+			   inst->shm_fd, 0);
+     if (inst->shm_data == MAP_FAILED) {
+       perror("mmap");
+       inst->shm_data = NULL;
+       inst->shm_size = 0;
+       return false;
+     }
+     inst->shm_size = size;
+   }
+
+   // IJLoader is done with the previous object, since we have its result;
+   // unless it timed out, and then what it still reads does not matter
+   memcpy(inst->shm_data, obj_data, data_len);
+
+   printf("Sending %zd byte image in shared memory...\n", data_len);
+   transmit_int(msg_type, inst->ij_to_file);
+   transmit_int(request_id, inst->ij_to_file);
+   transmit_int(0, inst->ij_to_file);
+   transmit_int(data_len, inst->ij_to_file);
+   return true;
+}
+
 static void transmit_macro(int macro_len, const char *macro, FILE *fp)
 {
    int net_macro_len = htonl(macro_len);
@@ -71,19 +297,41 @@ static void transmit_macro(int macro_len, const char *macro, FILE *fp)
    fwrite(macro, macro_len, 1, fp);
 }
 
-static double process_attrs_and_get_result(FILE *fp, lf_obj_handle_t ohandle)
+// one name, or for the multi messages a count and that many names
+static void transmit_macros(struct filter_instance *inst)
+{
+   int i;
+
+   if (inst->num_macros > 1) {
+     transmit_int(inst->num_macros, inst->ij_to_file);
+   }
+   for (i = 0; i < inst->num_macros; i++) {
+     const char *macro = inst->macro_names[i];
+     transmit_macro(strlen(macro), macro, inst->ij_to_file);
+   }
+}
+
+static double process_attrs_and_get_result(FILE *fp, lf_obj_handle_t ohandle,
+					   uint32_t request_id)
 {
   char *lineptr = NULL;
 
   int begun = 0;
   int len;
   size_t n;
+  unsigned int id;
 
   while (1) {
     getline(&lineptr, &n, fp);
     printf("getline says: %s\n", lineptr);
 
-    if (strcmp(lineptr, "BEGIN\n") == 0 && !begun) {
+    if (sscanf(lineptr, "BEGIN %u", &id) == 1 && !begun) {
+      // only one object is ever in flight, so this has to be it
+      if (id != request_id) {
+	printf("Result for request %u, expected %u\n", id, request_id);
+	free(lineptr);
+	return -1;
+      }
       begun = 1;
     } else if (strcmp(lineptr, "ATTR\n") == 0) {
       char *attr_name;
@@ -130,6 +378,117 @@ static double process_attrs_and_get_result(FILE *fp, lf_obj_handle_t ohandle)
   }
 }
 
+static bool read_full(void *buf, size_t len, FILE *fp)
+{
+  return len == 0 || fread(buf, len, 1, fp) == 1;
+}
+
+static bool read_int(uint32_t *val, FILE *fp)
+{
+  uint32_t net_val;
+  if (!read_full(&net_val, sizeof(net_val), fp)) {
+    return false;
+  }
+  *val = ntohl(net_val);
+  return true;
+}
+
+static bool read_double(double *val, FILE *fp)
+{
+  uint64_t net_val;
+  uint8_t bytes[8];
+  int i;
+
+  if (!read_full(bytes, sizeof(bytes), fp)) {
+    return false;
+  }
+  net_val = 0;
+  for (i = 0; i < 8; i++) {
+    net_val = (net_val << 8) | bytes[i];
+  }
+  memcpy(val, &net_val, sizeof(*val));
+  return true;
+}
+
+// reads a length-prefixed field, leaving room for a terminating NUL
+static uint8_t *read_field(uint32_t *len, const uint8_t **pos,
+			   const uint8_t *end)
+{
+  uint32_t net_len;
+  uint8_t *field;
+
+  if (end - *pos < (ptrdiff_t) sizeof(net_len)) {
+    return NULL;
+  }
+  memcpy(&net_len, *pos, sizeof(net_len));
+  *pos += sizeof(net_len);
+  *len = ntohl(net_len);
+  if ((uint32_t) (end - *pos) < *len) {
+    return NULL;
+  }
+  field = malloc(*len + 1);
+  memcpy(field, *pos, *len);
+  field[*len] = '\0';
+  *pos += *len;
+  return field;
+}
+
+static double process_result_frame(FILE *fp, lf_obj_handle_t ohandle,
+				   uint32_t request_id)
+{
+  uint32_t frame_len, type, id, count, i;
+  double result;
+
+  if (!read_int(&frame_len, fp) || frame_len < 20 ||
+      !read_int(&type, fp) || !read_int(&id, fp) ||
+      !read_int(&count, fp)) {
+    printf("Short result frame\n");
+    return -1;
+  }
+  if (type != IJLOADER_FRAME_RESULT || id != request_id) {
+    printf("Unexpected frame type %u for request %u, expected %u\n",
+	   type, id, request_id);
+    return -1;
+  }
+
+  // attribute records, then the score
+  size_t attrs_len = frame_len - 20;
+  uint8_t *attrs = malloc(attrs_len);
+  if (!read_full(attrs, attrs_len, fp) || !read_double(&result, fp)) {
+    printf("Short result frame\n");
+    free(attrs);
+    return -1;
+  }
+
+  const uint8_t *pos = attrs;
+  const uint8_t *end = attrs + attrs_len;
+  for (i = 0; i < count && pos < end; i++) {
+    uint8_t attr_type = *pos++;
+    uint32_t name_len, val_len;
+    uint8_t *attr_name = read_field(&name_len, &pos, end);
+    uint8_t *attr_val = attr_name ? read_field(&val_len, &pos, end) : NULL;
+
+    if (attr_val == NULL) {
+      printf("Bad attribute record\n");
+      free(attr_name);
+      break;
+    }
+
+    // strings keep their NUL, as in the text protocol
+    if (attr_type == IJLOADER_ATTR_STRING) {
+      val_len++;
+    }
+    printf("%s -> %u bytes\n", (char *) attr_name, val_len);
+    lf_write_attr(ohandle, (char *) attr_name, val_len, attr_val);
+    free(attr_name);
+    free(attr_val);
+  }
+  free(attrs);
+
+  printf("result: %g\n", result);
+  return result;
+}
+
 static int signal_pipe;
 static pthread_mutex_t signal_pipe_mutex = PTHREAD_MUTEX_INITIALIZER;
 
@@ -281,12 +640,19 @@ int f_init_imagej_exec (int num_arg, const char * const *args, int bloblen,
                         const void *blob_data, const char *filter_name,
                         void **filter_args)
 {
-   g_assert(num_arg == 1);
+   // each argument names a macro; they all run on one decoding of the
+   // object
+   g_assert(num_arg >= 1);
 
    printf("Launching ImageJ " IMAGEJ_VERSION "\n");
 
    struct filter_instance *inst =
      (struct filter_instance *)malloc(sizeof(struct filter_instance));
+   inst->shm_fd = -1;
+   inst->shm_data = NULL;
+   inst->shm_size = 0;
+   inst->macro_names = args;
+   inst->num_macros = num_arg;
 
    gchar *dirname = g_strdup_printf("%s/imagejfindXXXXXX", g_get_tmp_dir());
 
@@ -311,6 +677,14 @@ int f_init_imagej_exec (int num_arg, const char * const *args, int bloblen,
 				(const gchar *) ijloader_bin.data,
 				ijloader_bin.len, NULL));
 
+   // write the class data sharing archive, if the build could make one
+   bool use_cds = cds_bin.len > 0 && getenv_int("IJFIND_CDS", 1);
+   if (use_cds) {
+     extract_zip(cds_bin.data, cds_bin.len);
+     set_mtime("ij.jar", CDS_JAR_MTIME);
+     set_mtime(IJLOADER_FILE, CDS_JAR_MTIME);
+   }
+
    // write diamond_filter
    g_assert(chdir("plugins") == 0);
    g_assert(g_file_set_contents(DIAMOND_FILTER_FILE,
@@ -327,23 +701,82 @@ int f_init_imagej_exec (int num_arg, const char * const *args, int bloblen,
    extract_zip(blob_data, bloblen);
    g_assert(chdir("..") == 0);
 
-   // start X server?!
-   int display = start_x_server();
-   char *display_str = g_strdup_printf("localhost:%d", display);
-   setenv("DISPLAY", display_str, 1);
-   printf("DISPLAY=%s\n", display_str);
-   g_free(display_str);
+   // start X server?!  not needed if the macros run headless
+   bool headless = getenv_int("IJFIND_HEADLESS", 0);
+   if (!headless) {
+     int display = start_x_server();
+     char *display_str = g_strdup_printf("localhost:%d", display);
+     setenv("DISPLAY", display_str, 1);
+     printf("DISPLAY=%s\n", display_str);
+     g_free(display_str);
+   }
 
    // go!
-   char *ij_args[] = { "java", "-server",
-		       "-cp", "ij.jar:ijloader.jar:.",
-		       "ijloader.IJLoader", NULL };
+   GPtrArray *ij_args = g_ptr_array_new_with_free_func(g_free);
+   g_ptr_array_add(ij_args, g_strdup("java"));
+   g_ptr_array_add(ij_args, g_strdup("-server"));
+   if (headless) {
+     g_ptr_array_add(ij_args, g_strdup("-Djava.awt.headless=true"));
+   }
+   if (use_cds) {
+     // a JVM that cannot use the archive, or a different build of the
+     // one that made it, starts without it
+     g_ptr_array_add(ij_args, g_strdup("-XX:+IgnoreUnrecognizedVMOptions"));
+     g_ptr_array_add(ij_args,
+		     g_strdup("-XX:SharedArchiveFile=" CDS_ARCHIVE_FILE));
+     g_ptr_array_add(ij_args, g_strdup("-Xshare:auto"));
+     // and says so on stdout before IJLoader's greeting, unless told
+     // otherwise
+     g_ptr_array_add(ij_args, g_strdup("-Xlog:disable"));
+     g_ptr_array_add(ij_args, g_strdup("-Xlog:all=warning:stderr"));
+   }
+   g_ptr_array_add(ij_args, g_strdup_printf("-Dijloader.workers=%d",
+		   getenv_int("IJFIND_WORKERS", 1)));
+   add_int_property(ij_args, "IJFIND_BATCH_SIZE", "ijloader.batch.maxObjects");
+   add_int_property(ij_args, "IJFIND_BATCH_BYTES", "ijloader.batch.maxBytes");
+   add_string_property(ij_args, "IJFIND_LOG_LEVEL", "ijloader.log.level");
+   add_string_property(ij_args, "IJFIND_LOG_WINDOWS", "ijloader.log.windows");
+   add_string_property(ij_args, "IJFIND_STATS_FILE", "ijloader.stats.file");
+   add_int_property(ij_args, "IJFIND_STATS_INTERVAL",
+		    "ijloader.stats.interval");
+   add_int_property(ij_args, "IJFIND_LEAK_INTERVAL",
+		    "ijloader.leaks.interval");
+   add_string_property(ij_args, "IJFIND_CACHE_DIR", "ijloader.cache.dir");
+   add_int_property(ij_args, "IJFIND_CACHE_SIZE",
+		    "ijloader.cache.maxMegabytes");
+   add_int_property(ij_args, "IJFIND_TIMEOUT_MS", "ijloader.timeout.millis");
+   add_string_property(ij_args, "IJFIND_TIMEOUT_SCORE",
+		       "ijloader.timeout.score");
+   add_int_property(ij_args, "IJFIND_HEAP_WATERMARK",
+		    "ijloader.heap.watermark");
+   add_int_property(ij_args, "IJFIND_OBJECT_MAX_MB",
+		    "ijloader.object.maxMegabytes");
+   add_string_property(ij_args, "IJFIND_OBJECT_OVERSIZE",
+		       "ijloader.object.oversize");
+   add_string_property(ij_args, "IJFIND_JPEG_EXIF_ROTATE",
+		       "ijloader.jpeg.exifRotate");
+   // lib_filter hands us one object at a time and wants its score before
+   // the next, so IJLoader never has one of ours to prefetch; passed on
+   // for other senders and a lib_filter that can keep several in flight
+   add_int_property(ij_args, "IJFIND_PREFETCH", "ijloader.prefetch");
+   char *shm_path = NULL;
+   if (getenv_int("IJFIND_SHARED_MEMORY", 1)) {
+     inst->shm_fd = create_shm_file(&shm_path);
+   }
+   if (shm_path != NULL) {
+     g_ptr_array_add(ij_args,
+		     g_strdup_printf("-Dijloader.shm.file=%s", shm_path));
+   }
+   g_ptr_array_add(ij_args, g_strdup("-cp"));
+   g_ptr_array_add(ij_args, g_strdup("ij.jar:ijloader.jar:."));
+   g_ptr_array_add(ij_args, g_strdup("ijloader.IJLoader"));
+   g_ptr_array_add(ij_args, NULL);
 
    GError *err = NULL;
    int to_fd;
    int from_fd;
    g_spawn_async_with_pipes(NULL,
-			    ij_args,
+			    (gchar **) ij_args->pdata,
 			    NULL, G_SPAWN_SEARCH_PATH,
 			    NULL, NULL, NULL,
 			    &to_fd,
@@ -354,12 +787,24 @@ int f_init_imagej_exec (int num_arg, const char * const *args, int bloblen,
      fprintf (stderr, "Unable to spawn: %s\n", err->message);
      abort();
    }
+   g_ptr_array_free(ij_args, TRUE);
 
 
    inst->ij_to_file = fdopen(to_fd, "w");
    inst->ij_from_file = fdopen(from_fd, "r");
+   inst->next_request_id = 0;
+
+   negotiate_protocol(inst);
+
+   // IJLoader opened the file before answering, if it is going to
+   if (shm_path != NULL) {
+     unlink(shm_path);
+     g_free(shm_path);
+   }
+   if (!(inst->features & IJLOADER_FEATURE_SHARED_MEMORY)) {
+     close_shm(inst);
+   }
 
-   inst->macro_name = args[0];
    *filter_args = inst;
 
    return 0;
@@ -371,13 +816,33 @@ static double f_eval_imagej_exec (lf_obj_handle_t ohandle, void *filter_args)
 
    printf("Executing search...\n");
 
-   transmit_image(ohandle, inst->ij_to_file);
-   transmit_macro(strlen(inst->macro_name), inst->macro_name, inst->ij_to_file);
+   uint32_t request_id = inst->next_request_id++;
+   bool multi = inst->num_macros > 1;
+   if (inst->shm_fd >= 0 &&
+       !transmit_mapped_image(inst, ohandle,
+			      multi ? IJLOADER_MSG_MULTI_MAPPED_OBJECT :
+			      IJLOADER_MSG_MAPPED_OBJECT, request_id)) {
+     fprintf(stderr, "Sending objects through the pipe from now on\n");
+     close_shm(inst);
+   }
+   if (inst->shm_fd < 0) {
+     transmit_int(multi ? IJLOADER_MSG_MULTI_OBJECT : IJLOADER_MSG_OBJECT,
+		  inst->ij_to_file);
+     transmit_int(request_id, inst->ij_to_file);
+     transmit_image(ohandle, inst->ij_to_file);
+   }
+   transmit_macros(inst);
    fflush(inst->ij_to_file);
    printf("New image + macro sent...\n");
    fflush(stdout);
 
-   double result = process_attrs_and_get_result(inst->ij_from_file, ohandle);
+   double result;
+   if (inst->features & IJLOADER_FEATURE_BINARY_RESULTS) {
+     result = process_result_frame(inst->ij_from_file, ohandle, request_id);
+   } else {
+     result = process_attrs_and_get_result(inst->ij_from_file, ohandle,
+					   request_id);
+   }
    printf("result: %g\n", result);
    return result;
 }
@@ -0,0 +1,96 @@
+/*
+ * ImageJFind: A Diamond application for interoperating with ImageJ
+ *
+ * Copyright (c) 2006-2008 Carnegie Mellon University. All rights reserved.
+ * Additional copyrights may be listed below.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution in the file named LICENSE.
+ *
+ * Technical and financial contributors are listed in the file named
+ * CREDITS.
+ */
+
+package ijloader;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Receive buffers, reused from one object to the next.
+ * <p>
+ * Objects of several megabytes are humongous allocations for G1, which
+ * places them in regions of their own and only frees them in certain
+ * collections, so a new array per object wastes a lot of heap. Buffers
+ * taken here go back when the worker is done with the object, and the next
+ * object goes into the smallest one that holds it. Buffers are sized in
+ * steps of {@link #STEP}, so objects that grow a little still fit.
+ * <p>
+ * A buffer much larger than anything received lately is dropped rather
+ * than kept: every {@link #WINDOW} objects the largest one becomes the new
+ * measure, and buffers given back that are more than twice the size it
+ * needs are left to the collector.
+ */
+class BufferPool {
+
+    static final int STEP = 64 << 10;
+
+    static final int WINDOW = 64;
+
+    /* arrays this large may not be allocatable */
+    private static final int MAX_SIZE = Integer.MAX_VALUE - 8;
+
+    /* guarded by this */
+    private final List<byte[]> free = new ArrayList<byte[]>();
+
+    private int taken;
+
+    private int windowMax;
+
+    private int lastWindowMax = MAX_SIZE;
+
+    /**
+     * Returns a buffer of at least length bytes.
+     */
+    synchronized byte[] take(int length) {
+        windowMax = Math.max(windowMax, length);
+        if (++taken == WINDOW) {
+            lastWindowMax = windowMax;
+            windowMax = 0;
+            taken = 0;
+        }
+
+        int best = -1;
+        for (int i = 0; i < free.size(); i++) {
+            int size = free.get(i).length;
+            if (size >= length
+                    && (best < 0 || size < free.get(best).length)) {
+                best = i;
+            }
+        }
+        if (best >= 0) {
+            // order does not matter, so fill the hole with the last one
+            byte buf[] = free.get(best);
+            free.set(best, free.get(free.size() - 1));
+            free.remove(free.size() - 1);
+            return buf;
+        }
+        return new byte[sizeFor(length)];
+    }
+
+    /**
+     * Takes back a buffer from {@link #take} once nothing refers to it.
+     */
+    synchronized void give(byte buf[]) {
+        int needed = Math.max(lastWindowMax, windowMax);
+        if (buf.length <= 2L * sizeFor(needed)) {
+            free.add(buf);
+        }
+    }
+
+    private static int sizeFor(int length) {
+        long size = ((long) length + STEP - 1) / STEP * STEP;
+        return (int) Math.min(Math.max(size, STEP), MAX_SIZE);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * ImageJFind: A Diamond application for interoperating with ImageJ
+ *
+ * Copyright (c) 2006-2008 Carnegie Mellon University. All rights reserved.
+ * Additional copyrights may be listed below.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution in the file named LICENSE.
+ *
+ * Technical and financial contributors are listed in the file named
+ * CREDITS.
+ */
+
+package ijloader;
+
+import java.awt.Rectangle;
+import java.util.StringTokenizer;
+
+/**
+ * How a macro wants its objects decoded, from directives in the comments at
+ * the top of the macro file:
+ *
+ * <pre>
+ * // @ijloader subsample=4
+ * // @ijloader maxSize=1024
+ * // @ijloader region=0,0,2048,1536
+ * </pre>
+ *
+ * subsample keeps every nth pixel of every nth row, maxSize the smallest
+ * such n that brings the longer side down to at most that many pixels, and
+ * region only the rectangle at x, y of width by height pixels of the full
+ * image, clipped to it. With both, the region is subsampled. The image the
+ * macro gets is calibrated so that measurements are still in pixels of the
+ * full image (see {@link ImageDecoder}).
+ */
+class DecodeOptions {
+
+    static final DecodeOptions NONE = new DecodeOptions(1, 0, null);
+
+    private static final String DIRECTIVE = "@ijloader";
+
+    private final int subsample;
+
+    private final int maxSize;
+
+    /* null for the whole image */
+    private final Rectangle region;
+
+    private DecodeOptions(int subsample, int maxSize, Rectangle region) {
+        this.subsample = subsample;
+        this.maxSize = maxSize;
+        this.region = region;
+    }
+
+    /**
+     * Reads the directives of a macro. Ones that do not parse are logged
+     * and ignored.
+     */
+    static DecodeOptions parse(String macro, String name) {
+        int subsample = 1;
+        int maxSize = 0;
+        Rectangle region = null;
+
+        StringTokenizer lines = new StringTokenizer(macro, "\r\n");
+        while (lines.hasMoreTokens()) {
+            String line = lines.nextToken().trim();
+            if (line.length() == 0) {
+                continue;
+            }
+            if (!line.startsWith("//")) {
+                break;
+            }
+            line = line.substring(2).trim();
+            if (!line.startsWith(DIRECTIVE)) {
+                continue;
+            }
+
+            StringTokenizer st = new StringTokenizer(line.substring(DIRECTIVE
+                    .length()));
+            while (st.hasMoreTokens()) {
+                String option = st.nextToken();
+                int eq = option.indexOf('=');
+                String key = eq < 0 ? option : option.substring(0, eq);
+                String value = eq < 0 ? "" : option.substring(eq + 1);
+                try {
+                    if (key.equals("subsample")) {
+                        subsample = positive(Integer.parseInt(value));
+                    } else if (key.equals("maxSize")) {
+                        maxSize = positive(Integer.parseInt(value));
+                    } else if (key.equals("region")) {
+                        region = parseRegion(value);
+                    } else {
+                        Log.warn("Unknown directive " + key + " in " + name);
+                    }
+                } catch (NumberFormatException e) {
+                    Log.warn("Bad directive " + option + " in " + name);
+                }
+            }
+        }
+
+        if (subsample == 1 && maxSize == 0 && region == null) {
+            return NONE;
+        }
+        return new DecodeOptions(subsample, maxSize, region);
+    }
+
+    boolean isDefault() {
+        return this == NONE;
+    }
+
+    /**
+     * Returns the part of an image of the given size to decode. Returns the
+     * whole image if the region lies outside it.
+     */
+    Rectangle getRegion(int width, int height) {
+        Rectangle all = new Rectangle(0, 0, width, height);
+        if (region == null) {
+            return all;
+        }
+        Rectangle r = region.intersection(all);
+        if (r.isEmpty()) {
+            Log.warn("Region " + region.x + "," + region.y + ","
+                    + region.width + "," + region.height
+                    + " is outside the " + width + "x" + height
+                    + " image, decoding all of it");
+            return all;
+        }
+        return r;
+    }
+
+    /**
+     * Returns n for decoding every nth pixel of a region of the given size.
+     */
+    int getSubsampling(int width, int height) {
+        int n = subsample;
+        if (maxSize > 0) {
+            int longest = Math.max(width, height);
+            n = Math.max(n, (longest + maxSize - 1) / maxSize);
+        }
+        return n;
+    }
+
+    public boolean equals(Object o) {
+        if (!(o instanceof DecodeOptions)) {
+            return false;
+        }
+        DecodeOptions other = (DecodeOptions) o;
+        return subsample == other.subsample && maxSize == other.maxSize
+                && (region == null ? other.region == null : region
+                        .equals(other.region));
+    }
+
+    public int hashCode() {
+        return subsample * 31 + maxSize
+                + (region != null ? region.hashCode() : 0);
+    }
+
+    private static int positive(int n) {
+        if (n <= 0) {
+            throw new NumberFormatException();
+        }
+        return n;
+    }
+
+    private static Rectangle parseRegion(String value) {
+        StringTokenizer st = new StringTokenizer(value, ",");
+        if (st.countTokens() != 4) {
+            throw new NumberFormatException();
+        }
+        int x = Integer.parseInt(st.nextToken().trim());
+        int y = Integer.parseInt(st.nextToken().trim());
+        int width = positive(Integer.parseInt(st.nextToken().trim()));
+        int height = positive(Integer.parseInt(st.nextToken().trim()));
+        if (x < 0 || y < 0) {
+            throw new NumberFormatException();
+        }
+        return new Rectangle(x, y, width, height);
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * ImageJFind: A Diamond application for interoperating with ImageJ
+ *
+ * Copyright (c) 2006-2008 Carnegie Mellon University. All rights reserved.
+ * Additional copyrights may be listed below.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution in the file named LICENSE.
+ *
+ * Technical and financial contributors are listed in the file named
+ * CREDITS.
+ */
+
+package ijloader;
+
+import ij.IJ;
+import ij.Menus;
+import ij.Prefs;
+
+import java.io.*;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Properties;
+import java.util.Vector;
+
+/**
+ * Sets up ImageJ's command table in a headless JVM.
+ * <p>
+ * ImageJ fills in the table that maps command names to plugin classes while
+ * it builds its AWT menu bar, and menus cannot be created without a display.
+ * Without the table, IJ.run and IJ.open find no commands at all. We collect
+ * the same commands from the places Menus takes them from, without creating
+ * any menus:
+ * <ul>
+ * <li>the menu entries in IJ_Props.txt,
+ * <li>the items Menus adds in code, from a list kept here for the ImageJ
+ * version we bundle ({@link #BUILTIN_VERSION}),
+ * <li>plugin classes, plugin jars and macros in the plugins directory.
+ * </ul>
+ * The result is installed into Menus, together with the plugins and macros
+ * paths, through reflection.
+ * <p>
+ * Having a command is not enough to run it headless: commands that build a
+ * GenericDialog, even when the macro passes all their options, throw a
+ * HeadlessException.
+ */
+class HeadlessMenus {
+
+    /*
+     * The commands Menus adds in code rather than from IJ_Props.txt, as
+     * labels and classes, taken from the addPlugInItem and addCheckboxItem
+     * calls in this version of ImageJ. Check them again with "make check"
+     * when upgrading.
+     */
+    static final String BUILTIN_VERSION = "1.54f";
+
+    private static final String BUILTIN[][] = {
+            { "16-bit", "ij.plugin.Converter(\"16-bit\")" },
+            { "32-bit", "ij.plugin.Converter(\"32-bit\")" },
+            { "8-bit", "ij.plugin.Converter(\"8-bit\")" },
+            { "8-bit Color", "ij.plugin.Converter(\"8-bit Color\")" },
+            { "About ImageJ...", "ij.plugin.AboutBox" },
+            { "Analyze Particles...", "ij.plugin.filter.ParticleAnalyzer" },
+            { "Cache Sample Images ", "ij.plugin.URLOpener(\"cache\")" },
+            { "Calibrate...", "ij.plugin.filter.Calibrator" },
+            { "Cascade", "ij.plugin.WindowOrganizer(\"cascade\")" },
+            { "Clear", "ij.plugin.filter.Filler(\"clear\")" },
+            { "Clear Outside", "ij.plugin.filter.Filler(\"outside\")" },
+            { "Clear Results", "ij.plugin.filter.Analyzer(\"clear\")" },
+            { "Close", "ij.plugin.Commands(\"close\")" },
+            { "Close All", "ij.plugin.Commands(\"close-all\")" },
+            { "Copy", "ij.plugin.Clipboard(\"copy\")" },
+            { "Copy to System", "ij.plugin.Clipboard(\"scopy\")" },
+            { "Crop", "ij.plugin.Resizer(\"crop\")" },
+            { "Cut", "ij.plugin.Clipboard(\"cut\")" },
+            { "Dev. Resources...",
+                    "ij.plugin.BrowserLauncher(\""
+                            + "http://imagej.net/ij/developer/index.html\")" },
+            { "Distribution...", "ij.plugin.Distribution" },
+            { "Draw", "ij.plugin.filter.Filler(\"draw\")" },
+            { "Duplicate...", "ij.plugin.Duplicator" },
+            { "Enhance Contrast...", "ij.plugin.ContrastEnhancer" },
+            { "Fill", "ij.plugin.filter.Filler(\"fill\")" },
+            { "Find Edges", "ij.plugin.filter.Filters(\"edge\")" },
+            { "Find Maxima...", "ij.plugin.filter.MaximumFinder" },
+            { "HSB (32-bit)", "ij.plugin.Converter(\"HSB (32-bit)\")" },
+            { "HSB Stack", "ij.plugin.Converter(\"HSB Stack\")" },
+            { "Histogram", "ij.plugin.Histogram" },
+            { "Home", "ij.plugin.SimpleCommands(\"showdirHome\")" },
+            { "Image", "ij.plugin.SimpleCommands(\"showdirImage\")" },
+            { "Image Calculator...", "ij.plugin.ImageCalculator" },
+            { "ImageJ", "ij.plugin.SimpleCommands(\"showdirImageJ\")" },
+            { "ImageJ Website...", "ij.plugin.BrowserLauncher" },
+            { "Invert", "ij.plugin.filter.Filters(\"invert\")" },
+            { "LUTs", "ij.plugin.SimpleCommands(\"showdirLuts\")" },
+            { "Lab Stack", "ij.plugin.Converter(\"Lab Stack\")" },
+            { "Label", "ij.plugin.filter.Filler(\"label\")" },
+            { "Macro Functions...",
+                    "ij.plugin.BrowserLauncher(\""
+                            + "https://wsr.imagej.net/developer/macro/"
+                            + "functions.html\")" },
+            { "Macros", "ij.plugin.SimpleCommands(\"showdirMacros\")" },
+            { "Measure", "ij.plugin.filter.Analyzer" },
+            { "Open Next", "ij.plugin.NextImageOpener" },
+            { "Open as Panel", "ij.plugin.SimpleCommands(\"opencp\")" },
+            { "Open...", "ij.plugin.Commands(\"open\")" },
+            { "Page Setup...", "ij.plugin.filter.Printer(\"setup\")" },
+            { "Paste", "ij.plugin.Clipboard(\"paste\")" },
+            { "Paste Control...", "ij.plugin.frame.PasteController" },
+            { "Plot Profile", "ij.plugin.Profiler(\"plot\")" },
+            { "Plugins", "ij.plugin.SimpleCommands(\"showdirPlugins\")" },
+            { "Print...", "ij.plugin.filter.Printer(\"print\")" },
+            { "Properties...", "ij.plugin.filter.ImageProperties" },
+            { "Put Behind [tab]", "ij.plugin.Commands(\"tab\")" },
+            { "Quit", "ij.plugin.Commands(\"quit\")" },
+            { "RGB Color", "ij.plugin.Converter(\"RGB Color\")" },
+            { "RGB Stack", "ij.plugin.Converter(\"RGB Stack\")" },
+            { "Refresh Menus", "ij.plugin.ImageJ_Updater(\"menus\")" },
+            { "Release Notes...",
+                    "ij.plugin.BrowserLauncher(\""
+                            + "https://wsr.imagej.net/notes.html\")" },
+            { "Rename...", "ij.plugin.SimpleCommands(\"rename\")" },
+            { "Revert", "ij.plugin.Commands(\"revert\")" },
+            { "Save", "ij.plugin.Commands(\"save\")" },
+            { "Scale...", "ij.plugin.Scaler" },
+            { "Set Measurements...", "ij.plugin.filter.Analyzer(\"set\")" },
+            { "Set Scale...", "ij.plugin.filter.ScaleDialog" },
+            { "Sharpen", "ij.plugin.filter.Filters(\"sharpen\")" },
+            { "Show All", "ij.plugin.WindowOrganizer(\"show\")" },
+            { "Show Info...", "ij.plugin.ImageInfo" },
+            { "Smooth", "ij.plugin.filter.Filters(\"smooth\")" },
+            { "Subtract Background...",
+                    "ij.plugin.filter.BackgroundSubtracter" },
+            { "Summarize", "ij.plugin.filter.Analyzer(\"sum\")" },
+            { "Surface Plot...", "ij.plugin.SurfacePlotter" },
+            { "Tile", "ij.plugin.WindowOrganizer(\"tile\")" },
+            { "Undo", "ij.plugin.Commands(\"undo\")" },
+            { "Update ImageJ...", "ij.plugin.ImageJ_Updater" },
+            { "Why are Plugins Missing?",
+                    "ij.plugin.SimpleCommands(\"missing\")" },
+            { "temp", "ij.plugin.SimpleCommands(\"showdirTemp\")" }
+    };
+
+    private final Menus menus;
+
+    private final Hashtable<String, String> commands = new Hashtable<String, String>();
+
+    private HeadlessMenus() throws Exception {
+        // this is what IJ.init does, minus addMenuBar
+        menus = (Menus) newInstance(Menus.class);
+        Prefs.load(menus, null);
+        invoke("setupPluginsAndMacrosPaths");
+    }
+
+    static void install() {
+        try {
+            HeadlessMenus h = new HeadlessMenus();
+            h.addPropsCommands();
+            h.addBuiltinCommands();
+            h.addPlugins();
+            setStatic("pluginsTable", h.commands);
+            setStatic("shortcuts", new Hashtable<Object, Object>());
+            Log.info("Installed " + h.commands.size()
+                    + " commands for headless use");
+        } catch (Exception e) {
+            Log.error("Could not set up ImageJ commands", e);
+        }
+    }
+
+    /*
+     * Menu entries look like
+     * new01="Image...[n]",ij.plugin.Commands("new")
+     * Popup menu entries are bare labels and are skipped.
+     */
+    private void addPropsCommands() throws IOException {
+        Properties props = new Properties();
+        InputStream in;
+        File f = new File(Prefs.getHomeDir(), Prefs.PROPS_NAME);
+        if (f.isFile()) {
+            in = new FileInputStream(f);
+        } else {
+            in = Menus.class.getResourceAsStream("/" + Prefs.PROPS_NAME);
+        }
+        if (in == null) {
+            return;
+        }
+        try {
+            props.load(new BufferedInputStream(in));
+        } finally {
+            in.close();
+        }
+
+        for (Enumeration<?> e = props.propertyNames(); e.hasMoreElements();) {
+            String key = (String) e.nextElement();
+            if (key.matches("[a-z_]+[0-9][0-9]")) {
+                addEntry(props.getProperty(key));
+            }
+        }
+    }
+
+    private void addBuiltinCommands() {
+        if (!BUILTIN_VERSION.equals(IJ.getVersion())) {
+            Log.warn("Headless commands were listed for ImageJ "
+                    + BUILTIN_VERSION + ", not " + IJ.getVersion()
+                    + "; some may be missing");
+        }
+        for (String entry[] : BUILTIN) {
+            commands.put(entry[0], entry[1]);
+        }
+    }
+
+    private void addPlugins() throws Exception {
+        String plugins[] = Menus.getPlugins();
+        if (plugins == null) {
+            return;
+        }
+
+        // Menus.installUserPlugin
+        for (String className : plugins) {
+            String command = className.substring(className.indexOf('/') + 1)
+                    .replace('_', ' ');
+            if (commands.containsKey(command)) {
+                command = command + " Plugin";
+            }
+            commands.put(command, className.replace('/', '.'));
+        }
+
+        // Menus.installJarPlugins; getPlugins() has listed the jars
+        Vector<?> jarFiles = (Vector<?>) getStatic("jarFiles");
+        if (jarFiles != null) {
+            for (Object jar : jarFiles) {
+                InputStream in = (InputStream) invoke("getConfigurationFile",
+                        jar);
+                if (in != null) {
+                    addJarCommands(in);
+                }
+            }
+        }
+
+        // Menus.installMacros
+        Vector<?> macroFiles = (Vector<?>) getStatic("macroFiles");
+        if (macroFiles != null) {
+            for (Object o : macroFiles) {
+                String path = ((String) o).replace('/', File.separatorChar);
+                String command = new File(path).getName().replace('_', ' ');
+                command = command.substring(0, command.lastIndexOf('.'));
+                if (commands.containsKey(command)) {
+                    command = command + " Macro";
+                }
+                commands.put(command, "ij.plugin.Macro_Runner(\"" + path
+                        + "\")");
+            }
+        }
+    }
+
+    /* plugins.config lines: Menu>Submenu, "Label", class("arg") */
+    private void addJarCommands(InputStream in) throws IOException {
+        BufferedReader r = new BufferedReader(new InputStreamReader(in));
+        try {
+            String s;
+            while ((s = r.readLine()) != null) {
+                int quote = s.indexOf('"');
+                if (s.length() >= 3 && !s.startsWith("#") && quote >= 0) {
+                    addEntry(s.substring(quote).trim());
+                }
+            }
+        } finally {
+            r.close();
+        }
+    }
+
+    /* parses "Label[shortcut]",className the way Menus.addPluginItem does */
+    private void addEntry(String s) {
+        int lastComma = s.lastIndexOf(',');
+        if (!s.startsWith("\"") || lastComma <= 1) {
+            return;
+        }
+        String command = s.substring(1, lastComma - 1);
+        int bracket = command.lastIndexOf('[');
+        if (command.endsWith("]") && bracket == command.length() - 3) {
+            // single-key shortcut
+            command = command.substring(0, bracket);
+        }
+        commands.put(command, s.substring(lastComma + 1).trim());
+    }
+
+    private static Object newInstance(Class<?> c) throws Exception {
+        Constructor<?> cons = c.getDeclaredConstructors()[0];
+        cons.setAccessible(true);
+        return cons.newInstance(new Object[cons.getParameterTypes().length]);
+    }
+
+    private Object invoke(String name, Object... args) throws Exception {
+        for (Method m : Menus.class.getDeclaredMethods()) {
+            if (m.getName().equals(name)
+                    && m.getParameterTypes().length == args.length) {
+                m.setAccessible(true);
+                return m.invoke(menus, args);
+            }
+        }
+        throw new NoSuchMethodException(name);
+    }
+
+    private static Object getStatic(String name) throws Exception {
+        Field f = Menus.class.getDeclaredField(name);
+        f.setAccessible(true);
+        return f.get(null);
+    }
+
+    private static void setStatic(String name, Object value) throws Exception {
+        Field f = Menus.class.getDeclaredField(name);
+        f.setAccessible(true);
+        f.set(null, value);
+    }
+}
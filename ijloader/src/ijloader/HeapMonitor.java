@@ -0,0 +1,111 @@
+/*
+ * ImageJFind: A Diamond application for interoperating with ImageJ
+ *
+ * Copyright (c) 2006-2008 Carnegie Mellon University. All rights reserved.
+ * Additional copyrights may be listed below.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution in the file named LICENSE.
+ *
+ * Technical and financial contributors are listed in the file named
+ * CREDITS.
+ */
+
+package ijloader;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Watches how full the heap is after collections.
+ * <p>
+ * Whatever ImageJ keeps between objects that {@link ObjectScope} does not
+ * know about piles up in the old generation until full collections take
+ * most of the time and the JVM runs out of memory in the middle of a
+ * search. A collection usage threshold is set on every pool that holds
+ * long-lived objects, at ijloader.heap.watermark percent of its maximum.
+ * The JVM counts how often the heap left over by a collection crosses it,
+ * so a worker that sees the count change since its last object resets
+ * ImageJ completely before the next one.
+ */
+class HeapMonitor {
+
+    private final List<MemoryPoolMXBean> pools;
+
+    private HeapMonitor(List<MemoryPoolMXBean> pools) {
+        this.pools = pools;
+    }
+
+    /**
+     * Returns a monitor, or null if the watermark is off or no pool
+     * supports it.
+     */
+    static HeapMonitor open() {
+        int percent = Integer.getInteger("ijloader.heap.watermark", 85);
+        if (percent <= 0) {
+            return null;
+        }
+        if (percent >= 100) {
+            Log.warn("Invalid ijloader.heap.watermark " + percent
+                    + ", not watching the heap");
+            return null;
+        }
+
+        List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            // pools that support a usage threshold as well are the old
+            // generation; eden and survivor space only count after
+            // collections, when they are empty anyway
+            if (pool.getType() != MemoryType.HEAP
+                    || !pool.isUsageThresholdSupported()
+                    || !pool.isCollectionUsageThresholdSupported()) {
+                continue;
+            }
+            long max = pool.getUsage().getMax();
+            if (max <= 0) {
+                max = Runtime.getRuntime().maxMemory();
+            }
+            pool.setCollectionUsageThreshold(max / 100 * percent);
+            pools.add(pool);
+            Log.debug("Watching " + pool.getName() + " at " + percent + "%");
+        }
+        if (pools.isEmpty()) {
+            Log.warn("No heap pool supports a usage threshold, not watching "
+                    + "the heap");
+            return null;
+        }
+        return new HeapMonitor(pools);
+    }
+
+    /**
+     * Returns how often the heap has crossed the watermark so far.
+     */
+    long getCrossings() {
+        long count = 0;
+        for (MemoryPoolMXBean pool : pools) {
+            count += pool.getCollectionUsageThresholdCount();
+        }
+        return count;
+    }
+
+    /**
+     * Returns how full the watched pools were after the last collection,
+     * for the log.
+     */
+    String describe() {
+        StringBuilder sb = new StringBuilder();
+        for (MemoryPoolMXBean pool : pools) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(pool.getName()).append(' ').append(
+                    pool.getCollectionUsage().getUsed() >> 20).append(
+                    "MiB");
+        }
+        return sb.toString();
+    }
+}
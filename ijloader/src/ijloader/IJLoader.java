@@ -14,182 +14,599 @@
 
 package ijloader;
 
-import ij.IJ;
-import ij.ImagePlus;
-import ij.WindowManager;
-import ij.macro.Interpreter;
-import ij.measure.ResultsTable;
-import ij.text.TextWindow;
-
-import java.awt.Frame;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 public class IJLoader {
 
+    /*
+     * Sent by the filter instead of the first image length to ask for the
+     * newer protocol. Negative, so it can never be mistaken for a length.
+     */
+    static final int HELLO = 0x80494A4C;
+
+    static final int PROTOCOL_VERSION = 2;
+
+    /* message types of protocol version 2 */
+    static final int MSG_OBJECT = 1;
+
+    static final int MSG_BATCH = 2;
+
+    static final int MSG_STATS = 3;
+
+    /* an object in shared memory; see SharedMemory */
+    static final int MSG_MAPPED_OBJECT = 4;
+
+    /*
+     * The same as the two object messages, with a count and that many names
+     * in place of the macro name. The object is decoded once and the macros
+     * run on it in turn; see WorkerPool for how their results are combined.
+     */
+    static final int MSG_MULTI_OBJECT = 5;
+
+    static final int MSG_MULTI_MAPPED_OBJECT = 6;
+
+    /* optional features, negotiated in HELLO */
+    static final int FEATURE_BINARY_RESULTS = 1 << 0;
+
+    static final int FEATURE_BATCH = 1 << 1;
+
+    static final int FEATURE_STATS = 1 << 2;
+
+    /* only offered if the file named by ijloader.shm.file could be opened */
+    static final int FEATURE_SHARED_MEMORY = 1 << 3;
+
+    static final int FEATURE_MULTI_MACRO = 1 << 4;
+
+    static final int SUPPORTED_FEATURES = FEATURE_BINARY_RESULTS
+            | FEATURE_BATCH | FEATURE_STATS | FEATURE_SHARED_MEMORY
+            | FEATURE_MULTI_MACRO;
+
+    /* most macros one object may name */
+    private static final int MAX_MACROS = 256;
+
+    /*
+     * Largest batch we accept, in objects and in image bytes. Advertised in
+     * HELLO; senders trade latency for throughput anywhere below these.
+     */
+    private static final int BATCH_MAX_OBJECTS = Math.max(1, Integer
+            .getInteger("ijloader.batch.maxObjects", 64));
+
+    private static final int BATCH_MAX_BYTES = Math.max(1, Integer
+            .getInteger("ijloader.batch.maxBytes", 64 << 20));
+
+    /* frame types of the binary result protocol */
+    static final int FRAME_RESULT = 1;
+
+    static final int FRAME_STATS = 2;
+
     final private static IJLoaderOutputStream specialOut = new IJLoaderOutputStream(
             System.out);
 
-    private static class IJLoaderOutputStream extends PrintStream {
+    /* receive buffers, handed back by the workers */
+    private static final BufferPool buffers = new BufferPool();
+
+    /* only touched by the thread reading stdin */
+    private static byte nameBuffer[] = new byte[256];
+
+    private static final MacroNames macroNames = new MacroNames();
+
+    private static SharedMemory sharedMemory;
+
+    /* negotiated in HELLO; only touched by the thread reading stdin */
+    private static int features;
+
+    final private static InheritableThreadLocal<ObjectResult> currentObject = new InheritableThreadLocal<ObjectResult>();
+
+    static class IJLoaderOutputStream extends PrintStream {
+
+        private volatile boolean requestIds;
 
-        private volatile boolean resultEmitted;
+        private volatile boolean binary;
+
+        private final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+
+        private final DataOutputStream frameOut = new DataOutputStream(frame);
 
         public IJLoaderOutputStream(OutputStream out) {
             super(out);
         }
 
-        public void writeResult(String result) {
-            debugPrint("IJLoaderOutputStream writeResult: " + result);
-            if (resultEmitted) {
-                // throw new IllegalStateException("Result already written");
-                System.err.println("warning: Result already written");
+        public void setRequestIds(boolean requestIds) {
+            this.requestIds = requestIds;
+        }
+
+        public void setBinary(boolean binary) {
+            this.binary = binary;
+        }
+
+        public synchronized void writeObject(ObjectResult r) {
+            if (Log.isEnabled(Log.DEBUG)) {
+                Log.debug("IJLoaderOutputStream writeResult: "
+                        + r.getResult());
+            }
+            try {
+                if (binary) {
+                    writeFrame(r);
+                } else {
+                    writeText(r);
+                }
+            } catch (IOException e) {
+                setError();
+            }
+            flush();
+        }
+
+        private void writeText(ObjectResult r) throws IOException {
+            if (requestIds) {
+                println("BEGIN " + r.getId());
+            } else {
+                println("BEGIN");
             }
 
-            resultEmitted = true;
+            for (int i = 0; i < r.getAttributeCount(); i++) {
+                println("ATTR");
+                writeTextField("K", ObjectResult.encode(r
+                        .getAttributeName(i)));
+                writeTextField("V", r.getAttributeValue(i));
+            }
 
             println("RESULT");
-            println(result.length());
-            println(result);
+            byte result[] = ObjectResult.encode(r.getResult());
+            println(result.length);
+            write(result);
+            println();
+        }
+
+        private void writeTextField(String tag, byte value[])
+                throws IOException {
+            // lengths are in bytes, the filter freads exactly that many
+            println(tag);
+            println(value.length);
+            write(value);
+            println();
         }
 
-        public boolean getOutputEmitted() {
-            return resultEmitted;
+        /*
+         * One frame per object:
+         *
+         * u32 length of the rest of the frame
+         * u32 frame type (FRAME_RESULT)
+         * u32 request id
+         * u32 attribute count
+         * attribute records: u8 type, u32 name length, name (UTF-8),
+         *                    u32 value length, value
+         * f64 score
+         */
+        private void writeFrame(ObjectResult r) throws IOException {
+            frame.reset();
+            frameOut.writeInt(0);
+            frameOut.writeInt(FRAME_RESULT);
+            frameOut.writeInt(r.getId());
+            frameOut.writeInt(r.getAttributeCount());
+            for (int i = 0; i < r.getAttributeCount(); i++) {
+                byte name[] = ObjectResult.encode(r.getAttributeName(i));
+                byte value[] = r.getAttributeValue(i);
+                frameOut.writeByte(r.getAttributeType(i));
+                frameOut.writeInt(name.length);
+                frameOut.write(name);
+                frameOut.writeInt(value.length);
+                frameOut.write(value);
+            }
+            frameOut.writeDouble(r.getScore());
+            frameOut.flush();
+
+            writeFrameBuffer();
         }
 
-        public void resetEmitted() {
-            resultEmitted = false;
+        /*
+         * The reply to a stats request, the report from Stats as UTF-8:
+         *
+         * text:   STATS <id>, then the length and the report
+         * binary: u32 length, u32 FRAME_STATS, u32 request id, report
+         */
+        public synchronized void writeStats(int id, String report) {
+            byte text[] = ObjectResult.encode(report);
+            try {
+                if (binary) {
+                    frame.reset();
+                    frameOut.writeInt(0);
+                    frameOut.writeInt(FRAME_STATS);
+                    frameOut.writeInt(id);
+                    frameOut.write(text);
+                    frameOut.flush();
+                    writeFrameBuffer();
+                } else {
+                    println("STATS " + id);
+                    println(text.length);
+                    write(text);
+                    println();
+                }
+            } catch (IOException e) {
+                setError();
+            }
+            flush();
+        }
+
+        /* writes the frame, with its length patched in */
+        private void writeFrameBuffer() throws IOException {
+            byte buf[] = frame.toByteArray();
+            int len = buf.length - 4;
+            buf[0] = (byte) (len >>> 24);
+            buf[1] = (byte) (len >>> 16);
+            buf[2] = (byte) (len >>> 8);
+            buf[3] = (byte) len;
+            write(buf);
         }
     }
 
     public static void main(String args[]) {
-        // err
-        System.setOut(new PrintStream(new OutputStream() {
-            @Override
-            public void write(int i) {
-                System.err.write(i);
-            }
-        }));
+        // stdout carries results; anything else printed there (IJ.log in
+        // a headless JVM, plugins) goes to the log
+        System.setOut(Log.newLineStream(Log.INFO));
+
+        // straight from the descriptor rather than through System.in's own
+        // buffer; images larger than ours are read into place unbuffered
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(FileDescriptor.in), 1 << 16));
+
+        String statsFile = System.getProperty("ijloader.stats.file");
+        if (statsFile != null) {
+            Stats.startDump(new File(statsFile), Math.max(1, Long.getLong(
+                    "ijloader.stats.interval", 60)));
+        }
 
         try {
-            while (true) {
-                innerLoop(System.in, specialOut);
+            int first = in.readInt();
+            boolean negotiated = (first == HELLO);
+
+            int workers = 1;
+            if (negotiated) {
+                int version = Math.min(in.readInt(), PROTOCOL_VERSION);
+                features = in.readInt() & SUPPORTED_FEATURES;
+                String shmFile = System.getProperty("ijloader.shm.file");
+                if ((features & FEATURE_SHARED_MEMORY) != 0) {
+                    // must be open before we answer; the filter then
+                    // unlinks it
+                    if (shmFile != null) {
+                        sharedMemory = SharedMemory.open(new File(shmFile));
+                    }
+                    if (sharedMemory == null) {
+                        features &= ~FEATURE_SHARED_MEMORY;
+                    }
+                }
+                Log.info("Using protocol version " + version + ", features "
+                        + features);
+
+                // always a text line, so the filter can read it either way
+                specialOut.println("HELLO " + version + " " + features + " "
+                        + BATCH_MAX_OBJECTS + " " + BATCH_MAX_BYTES);
+                specialOut.flush();
+                specialOut.setRequestIds(true);
+                specialOut.setBinary((features & FEATURE_BINARY_RESULTS) != 0);
+
+                workers = Math.max(1, Integer.getInteger("ijloader.workers",
+                        1));
+                int cpus = Runtime.getRuntime().availableProcessors();
+                if (workers > cpus) {
+                    Log.warn(workers + " workers but only " + cpus
+                            + " processor(s), and each worker loads its"
+                            + " own copy of ImageJ");
+                }
             }
+
+            ResultCache cache = ResultCache.open();
+            WorkerPool pool = new WorkerPool(workers, workers > 1, specialOut,
+                    buffers, cache);
+            Log.info("Started " + pool.size() + " worker(s)");
+            try {
+                if (negotiated) {
+                    while (true) {
+                        readMessage(in, pool);
+                    }
+                } else {
+                    int imgLen = first;
+                    while (true) {
+                        long start = System.nanoTime();
+                        byte image[] = readImage(in, imgLen);
+                        String macroNames[] = readMacroNames(in, false);
+                        long receiveNanos = System.nanoTime() - start;
+                        pool.submit(new ObjectRequest(0, image, imgLen,
+                                macroNames, receiveNanos));
+                        imgLen = in.readInt();
+                    }
+                }
+            } catch (EOFException e) {
+                Log.info("End of input");
+            } finally {
+                pool.shutdown();
+                if (cache != null) {
+                    cache.close();
+                }
+            }
+        } catch (EOFException e) {
+            Log.info("End of input");
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("Reading from the filter failed", e);
+        } catch (InterruptedException e) {
+            Log.error("Interrupted", e);
+        }
+        if (statsFile != null) {
+            Stats.dump(new File(statsFile));
         }
+        Log.flush();
     }
 
-    private static void debugPrint(String msg) {
-        System.err.println("[IJLoader] " + msg);
+    /**
+     * Logs a message at debug level. Callers that concatenate should check
+     * {@link Log#isEnabled} first.
+     */
+    public static void debugPrint(String msg) {
+        Log.debug(msg);
     }
 
-    private static void innerLoop(InputStream in,
-            IJLoaderOutputStream specialOut) throws IOException {
-        Interpreter.batchMode = true;
-
-        debugPrint("Reading image...");
-
-        specialOut.println("BEGIN");
-
-        DataInputStream iStream = new DataInputStream(in);
-
-        int imgLen = iStream.readInt();
-
-        byte pixBuffer[] = new byte[imgLen];
-        iStream.readFully(pixBuffer, 0, pixBuffer.length);
-
-        debugPrint("Image read: " + pixBuffer.length + " bytes");
-
-        // save as temp
-        File tmp = File.createTempFile("ijloader", ".img");
-        tmp.deleteOnExit();
-        FileOutputStream fos = new FileOutputStream(tmp);
-        try {
-            fos.write(pixBuffer);
-        } finally {
-            fos.close();
+    private static void readMessage(DataInputStream in, WorkerPool pool)
+            throws IOException, InterruptedException {
+        int type = in.readInt();
+        switch (type) {
+        case MSG_OBJECT:
+        case MSG_MULTI_OBJECT: {
+            long start = System.nanoTime();
+            int id = in.readInt();
+            int imgLen = in.readInt();
+            byte image[] = readImage(in, imgLen);
+            String names[] = readMacroNames(in, type == MSG_MULTI_OBJECT);
+            long receiveNanos = System.nanoTime() - start;
+            pool.submit(new ObjectRequest(id, image, imgLen, names,
+                    receiveNanos));
+            break;
         }
+        case MSG_MAPPED_OBJECT:
+        case MSG_MULTI_MAPPED_OBJECT: {
+            // request id, offset and length in shared memory, macro names
+            long start = System.nanoTime();
+            int id = in.readInt();
+            int offset = in.readInt();
+            int imgLen = in.readInt();
+            String names[] = readMacroNames(in,
+                    type == MSG_MULTI_MAPPED_OBJECT);
+            if (sharedMemory == null) {
+                throw new IOException("Shared memory was not negotiated");
+            }
+            ByteBuffer image = sharedMemory.get(offset, imgLen);
+            long receiveNanos = System.nanoTime() - start;
+            pool.submit(new ObjectRequest(id, image, names, receiveNanos));
+            break;
+        }
+        case MSG_BATCH:
+            if ((features & FEATURE_BATCH) == 0) {
+                throw new IOException("Batches were not negotiated");
+            }
+            readBatch(in, pool);
+            break;
+        case MSG_STATS: {
+            // answered right away, between whatever results are pending;
+            // workers write results and record their stats under the same
+            // lock
+            int id = in.readInt();
+            synchronized (specialOut) {
+                specialOut.writeStats(id, Stats.report());
+            }
+            break;
+        }
+        default:
+            throw new IOException("Unknown message type " + type);
+        }
+    }
 
-        IJ.open(tmp.getPath());
-
-        tmp.delete();
+    /*
+     * A batch is the macro name followed by an object count and that many
+     * (request id, image length, image) records. Objects are handed to the
+     * workers as soon as they are read, and their results go back one at a
+     * time as they finish.
+     *
+     * Objects past the limits advertised in HELLO are read and thrown away,
+     * and answered as refused: all of a batch of too many objects, and of
+     * one of too many bytes, those from the one that goes over on. The ones
+     * before it are already running.
+     */
+    private static void readBatch(DataInputStream in, WorkerPool pool)
+            throws IOException, InterruptedException {
+        String macroNames[] = readMacroNames(in, false);
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Bad batch size " + count);
+        }
 
-        debugPrint("Reading macro name...");
+        if (Log.isEnabled(Log.DEBUG)) {
+            Log.debug("Reading batch of " + count + " objects");
+        }
+        boolean refuse = count > BATCH_MAX_OBJECTS;
+        if (refuse) {
+            Log.warn("Batch of " + count + " objects is larger than the "
+                    + "limit of " + BATCH_MAX_OBJECTS + ", refusing it");
+        }
+        long batchBytes = 0;
+        for (int i = 0; i < count; i++) {
+            long start = System.nanoTime();
+            int id = in.readInt();
+            int imgLen = in.readInt();
+            if (imgLen < 0) {
+                throw new IOException("Bad image length " + imgLen);
+            }
+            batchBytes += imgLen;
+            if (!refuse && batchBytes > BATCH_MAX_BYTES) {
+                Log.warn("Batch is larger than the limit of "
+                        + BATCH_MAX_BYTES + " bytes, refusing its last "
+                        + (count - i) + " objects");
+                refuse = true;
+            }
+            if (refuse) {
+                skipFully(in, imgLen);
+                refuseObject(id);
+                continue;
+            }
+            byte image[] = readImage(in, imgLen);
+            long receiveNanos = System.nanoTime() - start;
+            pool.submit(new ObjectRequest(id, image, imgLen, macroNames,
+                    receiveNanos));
+        }
+    }
 
-        int macroLen = iStream.readInt();
-        byte macroBuffer[] = new byte[macroLen];
-        iStream.readFully(macroBuffer);
+    /* read rather than skipped: stdin is a pipe, which cannot seek */
+    private static void skipFully(DataInputStream in, int len)
+            throws IOException {
+        byte buf[] = new byte[Math.min(len, 1 << 16)];
+        while (len > 0) {
+            int n = in.read(buf, 0, Math.min(len, buf.length));
+            if (n < 0) {
+                throw new EOFException();
+            }
+            len -= n;
+        }
+    }
 
-        String macroName = new String(macroBuffer, "UTF-8");
+    /*
+     * Answers an object without running it, the way objects too large to
+     * decode are answered.
+     */
+    private static void refuseObject(int id) {
+        ObjectResult result = new ObjectResult(id);
+        result.addAttribute(WorkerPool.REFUSED, "1");
+        result.setResult("0.0");
+        synchronized (specialOut) {
+            specialOut.writeObject(result);
+            Stats.count("refused");
+        }
+    }
 
-        debugPrint("Macro name read.");
-        debugPrint(macroName);
+    /*
+     * Reads the image into a pooled buffer, which the worker gives back
+     * when it is done with the object.
+     */
+    private static byte[] readImage(DataInputStream in, int imgLen)
+            throws IOException {
+        Log.debug("Reading image...");
 
-        debugPrint("Running macro...");
+        if (imgLen < 0) {
+            throw new IOException("Bad image length " + imgLen);
+        }
+        byte pixBuffer[] = buffers.take(imgLen);
+        in.readFully(pixBuffer, 0, imgLen);
 
-        specialOut.resetEmitted();
+        if (Log.isEnabled(Log.DEBUG)) {
+            Log.debug("Image read: " + imgLen + " bytes");
+        }
+        return pixBuffer;
+    }
 
-        String macroResult = IJ.runMacroFile(macroName);
-        debugPrint("macroResult: " + macroResult);
+    /*
+     * The name is the same for every object of a search, so it is only
+     * decoded the first time; after that the cached string is returned.
+     */
+    private static String readMacroName(DataInputStream in)
+            throws IOException {
+        return macroNames.get(nameBuffer, readMacroNameBytes(in));
+    }
 
-        debugPrint(" in batch mode: " + Interpreter.isBatchMode());
+    /* reads a name into nameBuffer and returns its length */
+    private static int readMacroNameBytes(DataInputStream in)
+            throws IOException {
+        Log.debug("Reading macro name...");
 
-        debugPrint("** LOG ");
-        Frame f[] = WindowManager.getNonImageWindows();
-        for (Frame frame : f) {
-            if (frame instanceof TextWindow) {
-                TextWindow tw = (TextWindow) frame;
-                debugPrint(" * " + tw.getTitle());
-                debugPrint(tw.getTextPanel().getText());
-            }
+        int macroLen = in.readInt();
+        if (macroLen < 0) {
+            throw new IOException("Bad macro name length " + macroLen);
         }
-        debugPrint("** END LOG ");
-
-        if (!specialOut.getOutputEmitted()) {
-            debugPrint("No output received from filter");
-            specialOut.writeResult("0.0");
+        if (macroLen > nameBuffer.length) {
+            nameBuffer = new byte[macroLen];
         }
+        in.readFully(nameBuffer, 0, macroLen);
 
-        debugPrint("Macro executed");
+        if (Log.isEnabled(Log.DEBUG)) {
+            Log.debug("Macro name read: " + macroNames.get(nameBuffer,
+                    macroLen));
+        }
+        return macroLen;
+    }
 
-        ResultsTable rTable = ResultsTable.getResultsTable();
-        if (rTable != null) {
-            rTable.reset();
+    /* a count and that many names, or just one name */
+    private static String[] readMacroNames(DataInputStream in, boolean multi)
+            throws IOException {
+        if (!multi) {
+            // shared by every object with this name
+            return macroNames.getArray(nameBuffer, readMacroNameBytes(in));
+        }
+        int count = in.readInt();
+        if (count < 1 || count > MAX_MACROS) {
+            throw new IOException("Bad macro count " + count);
+        }
+        String names[] = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = readMacroName(in);
         }
+        return names;
+    }
 
-        debugPrint("going to close all windows");
-        // WindowManager.setTempCurrentImage(null);
-        WindowManager.closeAllWindows();
-        debugPrint(" done");
+    static void beginObject(ObjectResult result) {
+        currentObject.set(result);
+    }
 
-        ImagePlus lastImage;
-        do {
-            lastImage = Interpreter.getLastBatchModeImage();
-            if (lastImage != null) {
-                Interpreter.removeBatchModeImage(lastImage);
-            }
-        } while (lastImage != null);
+    static void endObject() {
+        currentObject.remove();
+    }
 
-        debugPrint("Window count: ");
-        debugPrint(Integer.toString(WindowManager.getWindowCount()));
-        debugPrint("Image count: ");
-        debugPrint(Integer.toString(WindowManager.getImageCount()));
+    private static ObjectResult getCurrentObject() {
+        ObjectResult r = currentObject.get();
+        if (r == null) {
+            Log.warn("No object is being processed");
+        }
+        return r;
     }
 
-    public static void writeDiamondAttribute(String name, String val) {
-        debugPrint("writeDiamondAttribute: " + name + " -> " + val);
-        specialOut.println("ATTR");
+    /**
+     * Records how long the current object spent in one of the phases in
+     * {@link Stats}.
+     */
+    public static void recordPhase(int phase, long nanos) {
+        ObjectResult r = currentObject.get();
+        if (r != null) {
+            r.setPhaseTime(phase, nanos);
+        }
+    }
 
-        specialOut.println("K");
-        specialOut.println(name.length());
-        specialOut.println(name);
+    public static void writeDiamondAttribute(String name, String val) {
+        if (Log.isEnabled(Log.DEBUG)) {
+            Log.debug("writeDiamondAttribute: " + name + " -> " + val);
+        }
+        ObjectResult r = getCurrentObject();
+        if (r != null) {
+            r.addAttribute(name, val);
+        }
+    }
 
-        specialOut.println("V");
-        specialOut.println(val.length());
-        specialOut.println(val);
+    /**
+     * Writes an attribute with an arbitrary binary value. The filter stores
+     * it as is, without the terminating NUL string attributes get.
+     */
+    public static void writeDiamondAttribute(String name, byte val[]) {
+        if (Log.isEnabled(Log.DEBUG)) {
+            Log.debug("writeDiamondAttribute: " + name + " -> " + val.length
+                    + " bytes");
+        }
+        ObjectResult r = getCurrentObject();
+        if (r != null) {
+            r.addAttribute(name, val);
+        }
     }
 
     public static void writeResult(String val) {
-        debugPrint("result: " + val);
-        specialOut.writeResult(val);
+        if (Log.isEnabled(Log.DEBUG)) {
+            Log.debug("result: " + val);
+        }
+        ObjectResult r = getCurrentObject();
+        if (r != null) {
+            r.setResult(val);
+        }
     }
 }
@@ -0,0 +1,267 @@
+/*
+ * ImageJFind: A Diamond application for interoperating with ImageJ
+ *
+ * Copyright (c) 2006-2008 Carnegie Mellon University. All rights reserved.
+ * Additional copyrights may be listed below.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution in the file named LICENSE.
+ *
+ * Technical and financial contributors are listed in the file named
+ * CREDITS.
+ */
+
+package ijloader;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Menus;
+import ij.WindowManager;
+import ij.macro.Interpreter;
+import ij.text.TextWindow;
+
+import java.awt.Frame;
+import java.awt.GraphicsEnvironment;
+import java.awt.event.KeyEvent;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes an object, runs macros on it and puts ImageJ back the way it was
+ * after each one (see {@link ObjectScope}).
+ * <p>
+ * The decoded image is kept out of ImageJ's image lists between macros.
+ * Each macro but the last gets a duplicate of it as the current image,
+ * and the last one gets the image itself, so an object with a single macro
+ * is never copied. Macros that ask for the object decoded differently from
+ * the others get it reduced to what they ask for first.
+ * <p>
+ * Everything here works on ImageJ's global state, so each instance must be
+ * used by one thread at a time, and instances sharing a class loader must not
+ * be used concurrently. The exception is {@link #prefetch}, which only reads
+ * the object through ImageIO (see {@link ImageDecoder.Decoding}) and may run
+ * on a thread of its own while a macro runs.
+ */
+public class IJProcessor implements ObjectProcessor {
+
+    private final MacroCache macroCache = new MacroCache();
+
+    /* no windows, menus or dialogs; run with -Djava.awt.headless=true */
+    private final boolean headless = GraphicsEnvironment.isHeadless();
+
+    /* what each object leaves behind, released when it is done */
+    private final ObjectScope scope = new ObjectScope(headless);
+
+    /* what prefetch hands to open */
+    private static class Prefetched {
+        ImageDecoder.Decoding decoding;
+
+        IOException error;
+
+        long nanos;
+    }
+
+    /* the object between open and the last macro, or null */
+    private ImagePlus original;
+
+    /* how it was decoded, between open and close */
+    private ImageDecoder.Decoding decoding;
+
+    /* the thread running a macro, while it does; guarded by this */
+    private Thread macroThread;
+
+    /* copy the text of every log and text window to our log, per object */
+    private static final boolean dumpWindows = Boolean
+            .getBoolean("ijloader.log.windows");
+
+    public IJProcessor() {
+        // IJ.open used to set up the command table (and with it the plugins
+        // and macros directories) on the first object; objects decoded in
+        // memory never go through it, so do it up front
+        if (headless) {
+            HeadlessMenus.install();
+        } else {
+            Menus.getCommands();
+        }
+    }
+
+    public Object prefetch(ByteBuffer image, String macroNames[]) {
+        long start = System.nanoTime();
+        Prefetched p = new Prefetched();
+        try {
+            p.decoding = ImageDecoder.prepare(image, getOptions(macroNames));
+            p.decoding.read();
+        } catch (IOException e) {
+            p.error = e;
+        }
+        p.nanos = System.nanoTime() - start;
+        return p;
+    }
+
+    public boolean open(ByteBuffer image, String macroNames[],
+            Object prefetched) throws IOException {
+        Interpreter.batchMode = true;
+        IJ.resetEscape();
+
+        long start = System.nanoTime();
+        long prefetchNanos = 0;
+        try {
+            if (prefetched != null) {
+                Prefetched p = (Prefetched) prefetched;
+                prefetchNanos = p.nanos;
+                if (p.error != null) {
+                    throw p.error;
+                }
+                decoding = p.decoding;
+            } else {
+                decoding = ImageDecoder.prepare(image, getOptions(macroNames));
+            }
+            original = decoding.open();
+        } catch (ImageDecoder.TooLargeException e) {
+            Log.warn(e.getMessage() + ", not running its macros");
+            Stats.count("refused");
+            return false;
+        }
+        IJLoader.recordPhase(Stats.DECODE, prefetchNanos + System.nanoTime()
+                - start);
+        return true;
+    }
+
+    public void run(String macroName, boolean last) throws IOException {
+        // an aborted macro turns batch mode off
+        Interpreter.batchMode = true;
+
+        scope.open();
+        try {
+            if (original != null) {
+                ImagePlus imp = original;
+                if (last) {
+                    original = null;
+                } else {
+                    imp = original.duplicate();
+                    imp.setTitle(original.getTitle());
+                }
+                int n = decoding.getSubsampling();
+                DecodeOptions options = macroCache.getOptions(macroName);
+                if (!options.equals(decoding.getOptions())) {
+                    n = decoding.reduce(imp, options);
+                }
+                if (n > 1) {
+                    IJLoader.writeDiamondAttribute(ImageDecoder.SUBSAMPLING,
+                            Integer.toString(n));
+                }
+                // in batch mode this just registers the image and makes it
+                // current, same as IJ.open would
+                imp.show();
+            }
+            runMacro(macroName);
+        } finally {
+            long start = System.nanoTime();
+            scope.close();
+            IJLoader.recordPhase(Stats.CLEANUP, System.nanoTime() - start);
+        }
+
+        if (Log.isEnabled(Log.DEBUG)) {
+            Log.debug("Window count: " + WindowManager.getWindowCount());
+            Log.debug("Image count: " + WindowManager.getImageCount());
+        }
+    }
+
+    public void close() {
+        original = null;
+        decoding = null;
+    }
+
+    /*
+     * The object is decoded once for all its macros: the way they ask if
+     * they all ask for the same, else in full, to be reduced for each macro
+     * in run.
+     */
+    private DecodeOptions getOptions(String macroNames[]) throws IOException {
+        DecodeOptions options = macroCache.getOptions(macroNames[0]);
+        for (int i = 1; i < macroNames.length; i++) {
+            if (!options.equals(macroCache.getOptions(macroNames[i]))) {
+                return DecodeOptions.NONE;
+            }
+        }
+        return options;
+    }
+
+    public void reset() {
+        scope.reset();
+    }
+
+    /*
+     * Long-running commands check for Esc between slices, particles and so
+     * on, and the interpreter checks its done flag between statements, so
+     * most macros return soon after. Interpreter.abort waits two seconds for
+     * that. Loops and plugins that check nothing are then stopped the way
+     * ImageJ stops its own macro threads when Esc does not help.
+     */
+    @SuppressWarnings("deprecation")
+    public void abort() {
+        IJ.setKeyDown(KeyEvent.VK_ESCAPE);
+        Interpreter.abort();
+        synchronized (this) {
+            if (macroThread != null) {
+                Log.warn("Stopping " + macroThread.getName());
+                try {
+                    macroThread.stop();
+                } catch (UnsupportedOperationException e) {
+                    Log.warn("Cannot stop threads in this JVM, the worker "
+                            + "stays busy until the macro returns");
+                }
+            }
+        }
+    }
+
+    private void runMacro(String macroName) throws IOException {
+        long start = System.nanoTime();
+        boolean debug = Log.isEnabled(Log.DEBUG);
+        if (debug) {
+            Log.debug("Running macro " + macroName);
+        }
+
+        try {
+            synchronized (this) {
+                macroThread = Thread.currentThread();
+            }
+            macroCache.run(macroName);
+            synchronized (this) {
+                macroThread = null;
+            }
+        } catch (ThreadDeath td) {
+            // from abort, possibly while waiting to clear macroThread
+            synchronized (this) {
+                macroThread = null;
+            }
+            Log.warn("Macro " + macroName + " was stopped");
+        }
+        IJLoader.recordPhase(Stats.MACRO, System.nanoTime() - start);
+
+        if (debug) {
+            Log.debug(" in batch mode: " + Interpreter.isBatchMode());
+        }
+
+        // headless, the log goes straight to stdout, and so to our log
+        if (dumpWindows && !headless) {
+            dumpLogWindows();
+        }
+
+        Log.debug("Macro executed");
+    }
+
+    private static void dumpLogWindows() {
+        Log.info("** LOG ");
+        Frame f[] = WindowManager.getNonImageWindows();
+        for (Frame frame : f) {
+            if (frame instanceof TextWindow) {
+                TextWindow tw = (TextWindow) frame;
+                Log.info(" * " + tw.getTitle());
+                Log.info(tw.getTextPanel().getText());
+            }
+        }
+        Log.info("** END LOG ");
+    }
+}
@@ -0,0 +1,771 @@
+/*
+ * ImageJFind: A Diamond application for interoperating with ImageJ
+ *
+ * Copyright (c) 2006-2008 Carnegie Mellon University. All rights reserved.
+ * Additional copyrights may be listed below.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution in the file named LICENSE.
+ *
+ * Technical and financial contributors are listed in the file named
+ * CREDITS.
+ */
+
+package ijloader;
+
+import ij.CompositeImage;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.WindowManager;
+import ij.io.FileInfo;
+import ij.io.Opener;
+import ij.io.TiffDecoder;
+import ij.macro.Interpreter;
+import ij.measure.Calibration;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+/**
+ * Decodes a received object into an image that is not yet shown.
+ * <p>
+ * Formats that ImageJ can read from a stream are decoded straight out of
+ * the receive buffer, which is either an array or a region of shared memory
+ * mapped from the filter (see {@link SharedMemory}). Everything else (and
+ * anything the in-memory decoders choke on) is written to a temporary file
+ * and handed to {@link IJ#open}, which is what IJLoader always used to do.
+ * <p>
+ * Macros may ask for only a region of the image, or only every nth pixel of
+ * every nth row (see {@link DecodeOptions}). With ijloader.object.maxMegabytes
+ * set, n is raised until the decoded image fits. Single images ImageIO can
+ * read are read that way to begin with, others are decoded in full and
+ * reduced afterwards, unless that would be over the limit, in which case
+ * they are not opened at all; neither are images over it if
+ * ijloader.object.oversize is "refuse". The reduced image is calibrated so
+ * measurements stay in pixels of the full image. Images whose size cannot
+ * be told from their headers are opened in full and then reduced. So are
+ * JPEGs with an EXIF orientation if ijloader.jpeg.exifRotate is set, since
+ * IJ.open may then turn them, but they are not opened at all if over the
+ * limit. Otherwise they are decoded as stored, as IJ.open always did with
+ * the temporary file IJLoader gave it.
+ * <p>
+ * An image decoded for one set of options can be reduced further for
+ * another (see {@link Decoding#reduce}), so several macros asking for
+ * different ones can share one decoding.
+ */
+class ImageDecoder {
+
+    static enum Format {
+        TIFF, JPEG, PNG, UNKNOWN;
+
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    static enum Path {
+        MEMORY, TEMP_FILE, SUBSAMPLED;
+
+        public String toString() {
+            return name().toLowerCase().replace('_', ' ');
+        }
+    }
+
+    /**
+     * Thrown for images over the size limit that are not subsampled.
+     */
+    static class TooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    static final String SUBSAMPLING = "ijloader.subsampling";
+
+    private static final String TITLE = "ijloader.img";
+
+    /* 0 if there is no limit */
+    private static final long maxBytes = Math.max(0, Long.getLong(
+            "ijloader.object.maxMegabytes", 0)) << 20;
+
+    private static final boolean subsample = !"refuse".equals(System
+            .getProperty("ijloader.object.oversize"));
+
+    private static final boolean exifRotate = Boolean
+            .getBoolean("ijloader.jpeg.exifRotate");
+
+    private ImageDecoder() {
+    }
+
+    /**
+     * Works out from its headers how to decode the bytes from 0 to the
+     * limit of buf the way options ask, and whether it may be decoded at
+     * all.
+     */
+    static Decoding prepare(ByteBuffer buf, DecodeOptions options)
+            throws IOException {
+        Format format = detect(buf);
+        boolean rotated = isRotated(format, buf);
+
+        Rectangle region = null;
+        int n = 1;
+        boolean overLimit = false;
+        Header header = null;
+        if (maxBytes > 0 || !options.isDefault()) {
+            header = readHeader(format, buf);
+        }
+        if (header != null) {
+            region = options.getRegion(header.width, header.height);
+            n = options.getSubsampling(region.width, region.height);
+
+            long size = (long) region.width * region.height
+                    * header.bytesPerPixel * header.images;
+            if (maxBytes > 0 && size / ((long) n * n) > maxBytes) {
+                String what = "Image of " + (size >> 20)
+                        + "MiB is over the limit";
+                if (!subsample) {
+                    throw new TooLargeException(what);
+                }
+                while (size / ((long) n * n) > maxBytes) {
+                    n++;
+                }
+                if (header.images > 1) {
+                    throw new TooLargeException(what + " and a stack");
+                }
+                if (rotated) {
+                    throw new TooLargeException(what + " and rotated");
+                }
+                overLimit = true;
+                Log.debug(what + ", subsampling by " + n);
+            }
+            if (n == 1 && region.width == header.width
+                    && region.height == header.height) {
+                region = null;
+            }
+        }
+        if (rotated) {
+            // the header does not say which way up IJ.open will turn it,
+            // so the region is worked out once it has
+            return new Decoding(buf, format, options, null, null, 1, false);
+        }
+        return new Decoding(buf, format, options, header, region, n,
+                overLimit);
+    }
+
+    /**
+     * An object on its way to becoming an image. {@link #read} only uses
+     * ImageIO, so it may run on any thread, even while a macro runs in the
+     * same copy of ImageJ. {@link #open} must run on the thread macros run
+     * on: IJ.open, ImageJ's decoders and even the ImagePlus constructor
+     * touch ImageJ's static state, and ImageJ's error dialogs abort
+     * whatever macro is running.
+     */
+    static class Decoding {
+        private final ByteBuffer buf;
+
+        private final Format format;
+
+        private final DecodeOptions options;
+
+        /* of the full image; 0 until open if not known from the header */
+        private int width;
+
+        private int height;
+
+        /* null for the whole image at full size */
+        private Rectangle region;
+
+        private int n;
+
+        private final boolean overLimit;
+
+        /* 0 if not known, in which case region and n are set in open */
+        private final int images;
+
+        private boolean read;
+
+        /* the region as ImageIO read it, if it could */
+        private BufferedImage image;
+
+        /*
+         * its pixels, if ImageJ holds it as RGB; taking them out of the
+         * image is most of the work of turning it into an ImagePlus
+         */
+        private int rgb[];
+
+        private boolean reduced;
+
+        Decoding(ByteBuffer buf, Format format, DecodeOptions options,
+                Header header, Rectangle region, int n, boolean overLimit) {
+            this.buf = buf;
+            this.format = format;
+            this.options = options;
+            if (header != null) {
+                width = header.width;
+                height = header.height;
+                images = header.images;
+            } else {
+                images = 0;
+            }
+            this.region = region;
+            this.n = n;
+            this.overLimit = overLimit;
+        }
+
+        /**
+         * Returns the options it is decoded as.
+         */
+        DecodeOptions getOptions() {
+            return options;
+        }
+
+        /**
+         * Returns n if {@link #open} kept every nth pixel of every nth row.
+         */
+        int getSubsampling() {
+            return n;
+        }
+
+        /**
+         * Reads whatever ImageIO can read of the image, as the options ask
+         * or else in full.
+         */
+        void read() {
+            if (read) {
+                return;
+            }
+            read = true;
+            // never set for rotated JPEGs, whose pixels ImageIO reads as
+            // stored, not as IJ.open turns them
+            if (region != null && images == 1) {
+                image = readReduced(buf, region, n);
+                reduced = image != null;
+            }
+            if (image == null && !overLimit
+                    && (format == Format.JPEG || format == Format.PNG)
+                    && canDecodeInMemory(format, buf)) {
+                try {
+                    // ImageIO.read(InputStream) caches the stream in a
+                    // temporary file unless told not to
+                    image = ImageIO.read(new MemoryCacheImageInputStream(
+                            newInputStream(buf)));
+                } catch (IOException e) {
+                    image = null;
+                } catch (RuntimeException e) {
+                    image = null;
+                }
+            }
+            if (image != null) {
+                image = flatten(format, image);
+                rgb = getRGB(image);
+            }
+        }
+
+        /**
+         * Returns the image, not yet shown, or null if ImageJ could not
+         * make one.
+         */
+        ImagePlus open() throws IOException {
+            read();
+            if (overLimit && !reduced) {
+                throw new TooLargeException("Image is over the limit and "
+                        + "cannot be subsampled");
+            }
+
+            ImagePlus imp = null;
+            Path path = null;
+            if (image != null) {
+                imp = toImagePlus(format, image, rgb);
+                path = reduced ? Path.SUBSAMPLED : Path.MEMORY;
+                image = null;
+                rgb = null;
+            } else if (format == Format.TIFF) {
+                try {
+                    imp = new Opener().openTiff(newInputStream(buf), TITLE);
+                } catch (RuntimeException e) {
+                    imp = null;
+                }
+                if (imp != null && imp.getWidth() > 0) {
+                    path = Path.MEMORY;
+                }
+            }
+            if (path == null) {
+                imp = openViaTempFile(format, buf);
+                path = Path.TEMP_FILE;
+            }
+
+            if (images == 0 && imp != null) {
+                // the header did not say how large it is, or which way up
+                width = imp.getWidth();
+                height = imp.getHeight();
+                region = options.getRegion(width, height);
+                n = options.getSubsampling(region.width, region.height);
+                if (n == 1 && region.width == width
+                        && region.height == height) {
+                    region = null;
+                }
+            }
+            if (region != null && imp != null) {
+                if (!reduced) {
+                    ImageDecoder.reduce(imp, region, n);
+                }
+                calibrate(imp, region, n);
+                if (overLimit) {
+                    Stats.count("subsampled");
+                }
+            }
+
+            if (Log.isEnabled(Log.DEBUG)) {
+                Log.debug("Image decoded (" + format + ") via " + path
+                        + (region != null ? " to " + region.width + "x"
+                                + region.height + "/" + n : ""));
+            }
+            return imp;
+        }
+
+        /**
+         * Reduces what {@link #open} returned, or a copy of it, to what
+         * other options ask for, and returns every how many pixels of the
+         * full image it then keeps. It can only drop pixels: a region is
+         * clipped to the one decoded, and n rounded up to a multiple of the
+         * n decoded.
+         */
+        int reduce(ImagePlus imp, DecodeOptions other) {
+            Rectangle decoded = region != null ? region : new Rectangle(0, 0,
+                    width, height);
+            Rectangle wanted = other.getRegion(width, height).intersection(
+                    decoded);
+            if (wanted.isEmpty()) {
+                wanted = decoded;
+            }
+            int m = (other.getSubsampling(wanted.width, wanted.height) + n - 1)
+                    / n;
+
+            // the same rectangle in pixels of imp
+            int x = (wanted.x - decoded.x) / n;
+            int y = (wanted.y - decoded.y) / n;
+            int right = Math.min(imp.getWidth(), (wanted.x + wanted.width
+                    - decoded.x + n - 1) / n);
+            int bottom = Math.min(imp.getHeight(), (wanted.y + wanted.height
+                    - decoded.y + n - 1) / n);
+            Rectangle r = new Rectangle(x, y, right - x, bottom - y);
+            if (m == 1 && r.width == imp.getWidth()
+                    && r.height == imp.getHeight()) {
+                return n;
+            }
+            ImageDecoder.reduce(imp, r, m);
+            calibrate(imp, r, m);
+            if (Log.isEnabled(Log.DEBUG)) {
+                Log.debug("Image reduced to " + r.width + "x" + r.height + "/"
+                        + m);
+            }
+            return n * m;
+        }
+    }
+
+    /*
+     * Calibrates an image reduced to every nth pixel of the region so that
+     * measurements come out as they would have before.
+     */
+    private static void calibrate(ImagePlus imp, Rectangle region, int n) {
+        Calibration cal = imp.getCalibration();
+        cal.pixelWidth *= n;
+        cal.pixelHeight *= n;
+        cal.xOrigin = (cal.xOrigin - region.x) / n;
+        cal.yOrigin = (cal.yOrigin - region.y) / n;
+    }
+
+    static Format detect(ByteBuffer buf) {
+        int len = buf.limit();
+        if (len >= 4
+                && ((buf.get(0) == 'I' && buf.get(1) == 'I'
+                        && buf.get(2) == 42 && buf.get(3) == 0)
+                || (buf.get(0) == 'M' && buf.get(1) == 'M'
+                        && buf.get(2) == 0 && buf.get(3) == 42))) {
+            return Format.TIFF;
+        }
+        if (len >= 3 && (buf.get(0) & 0xFF) == 0xFF
+                && (buf.get(1) & 0xFF) == 0xD8 && (buf.get(2) & 0xFF) == 0xFF) {
+            return Format.JPEG;
+        }
+        if (len >= 8 && (buf.get(0) & 0xFF) == 0x89 && buf.get(1) == 'P'
+                && buf.get(2) == 'N' && buf.get(3) == 'G'
+                && buf.get(4) == '\r' && buf.get(5) == '\n'
+                && buf.get(6) == 0x1A && buf.get(7) == '\n') {
+            return Format.PNG;
+        }
+        return Format.UNKNOWN;
+    }
+
+    private static boolean canDecodeInMemory(Format format, ByteBuffer buf) {
+        switch (format) {
+        case TIFF:
+        case PNG:
+            return true;
+        case JPEG:
+            // with the Exif_Reader plugin installed, IJ.open rotates a
+            // .jpg according to its EXIF orientation by re-reading the
+            // file, so leave those to it if asked to
+            return !isRotated(format, buf);
+        default:
+            return false;
+        }
+    }
+
+    /* a JPEG with an EXIF orientation other than as stored, to be turned */
+    private static boolean isRotated(Format format, ByteBuffer buf) {
+        return exifRotate && format == Format.JPEG
+                && jpegOrientation(buf) > 1;
+    }
+
+    /*
+     * Draws images with alpha or a custom 8-bit layout on white, which is
+     * what Opener.openUsingImageIO does to everything but JPEGs.
+     */
+    private static BufferedImage flatten(Format format, BufferedImage img) {
+        if (format == Format.JPEG) {
+            return img;
+        }
+        boolean custom8Bit = img.getType() == 0
+                && img.getSampleModel().getDataType() == 0;
+        if (!img.getColorModel().hasAlpha() && !custom8Bit) {
+            return img;
+        }
+        int width = img.getWidth();
+        int height = img.getHeight();
+        BufferedImage bi = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_ARGB);
+        Graphics g = bi.getGraphics();
+        g.setColor(Color.white);
+        g.fillRect(0, 0, width, height);
+        g.drawImage(img, 0, 0, null);
+        g.dispose();
+        return bi;
+    }
+
+    /*
+     * Returns the pixels of the types ImagePlus makes a ColorProcessor of,
+     * as it would grab them, or null for the others.
+     */
+    private static int[] getRGB(BufferedImage img) {
+        switch (img.getType()) {
+        case BufferedImage.TYPE_3BYTE_BGR:
+        case BufferedImage.TYPE_4BYTE_ABGR:
+        case BufferedImage.TYPE_INT_RGB:
+        case BufferedImage.TYPE_INT_ARGB:
+        case BufferedImage.TYPE_INT_BGR:
+            int width = img.getWidth();
+            return img.getRGB(0, 0, width, img.getHeight(), null, 0, width);
+        default:
+            return null;
+        }
+    }
+
+    /* img after flatten, rgb from getRGB */
+    private static ImagePlus toImagePlus(Format format, BufferedImage img,
+            int rgb[]) {
+        ImagePlus imp;
+        if (rgb != null) {
+            imp = new ImagePlus(TITLE, new ColorProcessor(img.getWidth(), img
+                    .getHeight(), rgb));
+        } else {
+            imp = new ImagePlus(TITLE, img);
+        }
+
+        if (format == Format.JPEG) {
+            if (imp.getType() == ImagePlus.COLOR_RGB) {
+                Opener.convertGrayJpegTo8Bits(imp);
+            }
+        } else if (imp.getBitDepth() == 16) {
+            imp = new CompositeImage(imp, IJ.COMPOSITE);
+        }
+        return imp;
+    }
+
+    /* what the headers of an image say about the size of it */
+    private static class Header {
+        int width;
+
+        int height;
+
+        /* as ImageJ holds them */
+        int bytesPerPixel;
+
+        int images;
+    }
+
+    /*
+     * Returns the size of the image, or null if that cannot be told without
+     * decoding it. Images of several sizes count as the size of the first.
+     */
+    private static Header readHeader(Format format, ByteBuffer buf) {
+        Header header = new Header();
+        try {
+            if (format == Format.TIFF) {
+                FileInfo info[] = new TiffDecoder(newInputStream(buf), TITLE)
+                        .getTiffInfo();
+                if (info == null || info.length == 0) {
+                    return null;
+                }
+                header.width = info[0].width;
+                header.height = info[0].height;
+                header.bytesPerPixel = info[0].getBytesPerPixel();
+                for (FileInfo fi : info) {
+                    header.images += Math.max(1, fi.nImages);
+                }
+                return header;
+            }
+
+            ImageInputStream in = new MemoryCacheImageInputStream(
+                    newInputStream(buf));
+            ImageReader reader = getReader(in);
+            if (reader == null) {
+                return null;
+            }
+            try {
+                // color is held as one int per pixel
+                ImageTypeSpecifier type = reader.getRawImageType(0);
+                header.bytesPerPixel = 4;
+                if (type != null && type.getNumBands() == 1) {
+                    header.bytesPerPixel = (type.getSampleModel()
+                            .getSampleSize(0) + 7) / 8;
+                }
+                header.width = reader.getWidth(0);
+                header.height = reader.getHeight(0);
+                header.images = 1;
+                return header;
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException e) {
+            return null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /*
+     * Reads every nth pixel of every nth row of the region through ImageIO.
+     * Returns null if ImageIO cannot read the image, or it is a stack.
+     */
+    private static BufferedImage readReduced(ByteBuffer buf,
+            Rectangle region, int n) {
+        ImageInputStream in = new MemoryCacheImageInputStream(
+                newInputStream(buf));
+        ImageReader reader = getReader(in);
+        if (reader == null) {
+            return null;
+        }
+        try {
+            if (reader.getNumImages(true) > 1) {
+                return null;
+            }
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(region);
+            param.setSourceSubsampling(n, n, 0, 0);
+            return reader.read(0, param);
+        } catch (IOException e) {
+            return null;
+        } catch (RuntimeException e) {
+            return null;
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    /*
+     * Replaces the pixels of every slice with every nth pixel of every nth
+     * row of the region, which is what reading them that way gives.
+     */
+    private static void reduce(ImagePlus imp, Rectangle region, int n) {
+        int width = (region.width + n - 1) / n;
+        int height = (region.height + n - 1) / n;
+        ImageStack stack = imp.getStack();
+        ImageStack reduced = new ImageStack(width, height, stack
+                .getColorModel());
+        for (int i = 1; i <= stack.getSize(); i++) {
+            ImageProcessor ip = stack.getProcessor(i);
+            ImageProcessor out = ip.createProcessor(width, height);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    out.putPixel(x, y, ip.getPixel(region.x + x * n,
+                            region.y + y * n));
+                }
+            }
+            reduced.addSlice(stack.getSliceLabel(i), out);
+        }
+        imp.setStack(reduced);
+    }
+
+    /* returns a reader with in as its input, or null if none can read it */
+    private static ImageReader getReader(ImageInputStream in) {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (!readers.hasNext()) {
+            return null;
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(in, false, true);
+        return reader;
+    }
+
+    private static InputStream newInputStream(ByteBuffer buf) {
+        if (buf.hasArray()) {
+            return new ByteArrayInputStream(buf.array(), buf.arrayOffset(),
+                    buf.limit());
+        }
+        return new ByteBufferInputStream(buf.duplicate());
+    }
+
+    private static ImagePlus openViaTempFile(Format format, ByteBuffer buf)
+            throws IOException {
+        // ImageJ only looks for the EXIF orientation of files named .jpg
+        File tmp = File.createTempFile("ijloader",
+                exifRotate && format == Format.JPEG ? ".jpg" : ".img");
+        tmp.deleteOnExit();
+        FileChannel out = new FileOutputStream(tmp).getChannel();
+        try {
+            ByteBuffer src = buf.duplicate();
+            src.rewind();
+            while (src.hasRemaining()) {
+                out.write(src);
+            }
+        } finally {
+            out.close();
+        }
+
+        // IJ.open shows what it opens, and may print its own errors;
+        // take the image back off the batch mode list
+        IJ.open(tmp.getPath());
+        ImagePlus imp = WindowManager.getCurrentImage();
+        if (imp != null) {
+            Interpreter.removeBatchModeImage(imp);
+            WindowManager.setTempCurrentImage(null);
+        }
+
+        tmp.delete();
+        return imp;
+    }
+
+    /*
+     * Returns the EXIF orientation tag of a JPEG, 0 if there is none, or -1
+     * if the markers could not be walked.
+     */
+    private static int jpegOrientation(ByteBuffer buf) {
+        int len = buf.limit();
+        int pos = 2;
+        while (pos + 4 <= len) {
+            if ((buf.get(pos) & 0xFF) != 0xFF) {
+                return -1;
+            }
+            int marker = buf.get(pos + 1) & 0xFF;
+            if (marker == 0xD9 || marker == 0xDA) {
+                // end of image or start of scan, no more metadata
+                return 0;
+            }
+            int segLen = readShort(buf, pos + 2, true);
+            if (segLen < 2 || pos + 2 + segLen > len) {
+                return -1;
+            }
+            if (marker == 0xE1 && segLen >= 16 && buf.get(pos + 4) == 'E'
+                    && buf.get(pos + 5) == 'x' && buf.get(pos + 6) == 'i'
+                    && buf.get(pos + 7) == 'f') {
+                return exifOrientation(buf, pos + 10, pos + 2 + segLen);
+            }
+            pos += 2 + segLen;
+        }
+        return -1;
+    }
+
+    private static int exifOrientation(ByteBuffer buf, int tiff, int end) {
+        boolean bigEndian;
+        if (buf.get(tiff) == 'M' && buf.get(tiff + 1) == 'M') {
+            bigEndian = true;
+        } else if (buf.get(tiff) == 'I' && buf.get(tiff + 1) == 'I') {
+            bigEndian = false;
+        } else {
+            return -1;
+        }
+
+        long ifd = tiff + (readInt(buf, tiff + 4, bigEndian) & 0xFFFFFFFFL);
+        if (ifd + 2 > end) {
+            return -1;
+        }
+        int entries = readShort(buf, (int) ifd, bigEndian);
+        for (int i = 0; i < entries; i++) {
+            int entry = (int) ifd + 2 + 12 * i;
+            if (entry + 12 > end) {
+                return -1;
+            }
+            if (readShort(buf, entry, bigEndian) == 0x0112) {
+                return readShort(buf, entry + 8, bigEndian);
+            }
+        }
+        return 0;
+    }
+
+    private static int readShort(ByteBuffer buf, int pos, boolean bigEndian) {
+        int b0 = buf.get(pos) & 0xFF;
+        int b1 = buf.get(pos + 1) & 0xFF;
+        return bigEndian ? (b0 << 8) | b1 : (b1 << 8) | b0;
+    }
+
+    private static int readInt(ByteBuffer buf, int pos, boolean bigEndian) {
+        int hi = readShort(buf, bigEndian ? pos : pos + 2, bigEndian);
+        int lo = readShort(buf, bigEndian ? pos + 2 : pos, bigEndian);
+        return (hi << 16) | lo;
+    }
+
+    /* reads a buffer from its position to its limit */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+        }
+
+        public int read(byte b[], int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buf.remaining());
+            buf.get(b, off, len);
+            return len;
+        }
+
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buf.remaining()));
+            buf.position(buf.position() + skipped);
+            return skipped;
+        }
+
+        public int available() {
+            return buf.remaining();
+        }
+    }
+}
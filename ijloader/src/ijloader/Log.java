@@ -0,0 +1,261 @@
+/*
+ * ImageJFind: A Diamond application for interoperating with ImageJ
+ *
+ * Copyright (c) 2006-2008 Carnegie Mellon University. All rights reserved.
+ * Additional copyrights may be listed below.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution in the file named LICENSE.
+ *
+ * Technical and financial contributors are listed in the file named
+ * CREDITS.
+ */
+
+package ijloader;
+
+import java.io.*;
+
+/**
+ * Leveled logging to stderr, off the calling thread.
+ * <p>
+ * Messages go into a bounded ring buffer and a daemon thread writes them out
+ * in batches, one write and flush per batch. When the buffer is full new
+ * messages are dropped and counted rather than blocking a worker, and runs of
+ * identical messages are collapsed into a single "repeated" line.
+ * <p>
+ * Check {@link #isEnabled} before building an expensive message. The level
+ * comes from the ijloader.log.level property (error, warn, info or debug;
+ * info by default).
+ * <p>
+ * Shared by all workers (see {@link WorkerPool}), so it is public.
+ */
+public class Log {
+
+    public static final int ERROR = 0;
+
+    public static final int WARN = 1;
+
+    public static final int INFO = 2;
+
+    public static final int DEBUG = 3;
+
+    private static final String LEVEL_NAMES[] = { "error", "warn", "info",
+            "debug" };
+
+    private static final String PREFIX = "[IJLoader] ";
+
+    private static final int level = parseLevel(System.getProperty(
+            "ijloader.log.level", "info"));
+
+    private static final String ring[] = new String[Math.max(16, Integer
+            .getInteger("ijloader.log.buffer", 4096))];
+
+    private static final Object lock = new Object();
+
+    /* guarded by lock */
+    private static int head;
+
+    private static int count;
+
+    private static int dropped;
+
+    private static boolean writing;
+
+    private static final PrintStream err = System.err;
+
+    static {
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "IJLoader log writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                flush();
+            }
+        });
+    }
+
+    private Log() {
+    }
+
+    public static boolean isEnabled(int messageLevel) {
+        return messageLevel <= level;
+    }
+
+    public static void error(String msg) {
+        log(ERROR, PREFIX + "error: " + msg);
+    }
+
+    public static void error(String msg, Throwable t) {
+        StringWriter sw = new StringWriter();
+        t.printStackTrace(new PrintWriter(sw));
+        log(ERROR, PREFIX + "error: " + msg + "\n" + sw.toString().trim());
+    }
+
+    public static void warn(String msg) {
+        if (isEnabled(WARN)) {
+            log(WARN, PREFIX + "warning: " + msg);
+        }
+    }
+
+    public static void info(String msg) {
+        if (isEnabled(INFO)) {
+            log(INFO, PREFIX + msg);
+        }
+    }
+
+    public static void debug(String msg) {
+        if (isEnabled(DEBUG)) {
+            log(DEBUG, PREFIX + msg);
+        }
+    }
+
+    /**
+     * Queues a line, as is, if messages of this level are enabled.
+     */
+    public static void log(int messageLevel, String line) {
+        if (!isEnabled(messageLevel)) {
+            return;
+        }
+        synchronized (lock) {
+            if (count == ring.length) {
+                dropped++;
+                return;
+            }
+            ring[(head + count) % ring.length] = line;
+            count++;
+            if (count == 1) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits until everything queued so far has been written.
+     */
+    public static void flush() {
+        synchronized (lock) {
+            while (count > 0 || writing) {
+                try {
+                    lock.wait(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+        err.flush();
+    }
+
+    /**
+     * A stream that logs each line written to it, for System.out.
+     */
+    static PrintStream newLineStream(final int messageLevel) {
+        return new PrintStream(new OutputStream() {
+            private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+            @Override
+            public synchronized void write(int b) {
+                if (b == '\n') {
+                    log(messageLevel, line.toString());
+                    line.reset();
+                } else {
+                    line.write(b);
+                }
+            }
+
+            @Override
+            public synchronized void write(byte b[], int off, int len) {
+                int start = off;
+                for (int i = off; i < off + len; i++) {
+                    if (b[i] == '\n') {
+                        line.write(b, start, i - start);
+                        log(messageLevel, line.toString());
+                        line.reset();
+                        start = i + 1;
+                    }
+                }
+                line.write(b, start, off + len - start);
+            }
+        }, true);
+    }
+
+    private static void writeLoop() {
+        String batch[] = new String[ring.length];
+        String last = null;
+        int repeats = 0;
+        StringBuilder sb = new StringBuilder();
+
+        while (true) {
+            int n;
+            int lost;
+            synchronized (lock) {
+                writing = false;
+                lock.notifyAll();
+                while (count == 0) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                n = count;
+                for (int i = 0; i < n; i++) {
+                    batch[i] = ring[(head + i) % ring.length];
+                    ring[(head + i) % ring.length] = null;
+                }
+                head = (head + n) % ring.length;
+                count = 0;
+                lost = dropped;
+                dropped = 0;
+                writing = true;
+            }
+
+            sb.setLength(0);
+            for (int i = 0; i < n; i++) {
+                if (batch[i].equals(last)) {
+                    repeats++;
+                    continue;
+                }
+                if (repeats > 0) {
+                    appendRepeats(sb, repeats);
+                    repeats = 0;
+                }
+                last = batch[i];
+                sb.append(last).append('\n');
+            }
+            // a run may continue in the next batch, but report it now
+            // rather than leave it hanging if the log goes quiet
+            if (repeats > 0) {
+                appendRepeats(sb, repeats);
+                repeats = 0;
+                last = null;
+            }
+            if (lost > 0) {
+                sb.append(PREFIX).append(lost).append(
+                        " log messages dropped\n");
+            }
+            err.print(sb);
+            err.flush();
+        }
+    }
+
+    private static void appendRepeats(StringBuilder sb, int repeats) {
+        sb.append(PREFIX).append("last message repeated ").append(repeats)
+                .append(repeats == 1 ? " time\n" : " times\n");
+    }
+
+    private static int parseLevel(String name) {
+        for (int i = 0; i < LEVEL_NAMES.length; i++) {
+            if (LEVEL_NAMES[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return INFO;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * ImageJFind: A Diamond application for interoperating with ImageJ
+ *
+ * Copyright (c) 2006-2008 Carnegie Mellon University. All rights reserved.
+ * Additional copyrights may be listed below.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution in the file named LICENSE.
+ *
+ * Technical and financial contributors are listed in the file named
+ * CREDITS.
+ */
+
+package ijloader;
+
+import ij.IJ;
+import ij.Macro;
+import ij.Menus;
+import ij.macro.Interpreter;
+import ij.macro.Program;
+import ij.macro.Tokenizer;
+import ij.plugin.frame.Editor;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tokenized macro programs, kept across objects.
+ * <p>
+ * {@link IJ#runMacroFile} reads and tokenizes the macro file every time it is
+ * called. Diamond sends the same macro name for every object of a search, so
+ * we tokenize each macro once and run the cached {@link Program} until the
+ * file's modification time (or size) changes.
+ * <p>
+ * Macro files are found the same way Macro_Runner finds them. Scripts in
+ * other languages, and names we cannot resolve, are passed through to
+ * {@link IJ#runMacroFile} unchanged.
+ * <p>
+ * The {@link DecodeOptions} directives at the top of each macro are read
+ * along with it.
+ */
+class MacroCache {
+
+    private static class Entry {
+        final File file;
+
+        final long lastModified;
+
+        final long length;
+
+        final Program program;
+
+        final DecodeOptions options;
+
+        Entry(File file, Program program, DecodeOptions options) {
+            this.file = file;
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+            this.program = program;
+            this.options = options;
+        }
+
+        boolean isCurrent() {
+            return file.lastModified() == lastModified
+                    && file.length() == length;
+        }
+    }
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * Runs the named macro file, compiling it first if it is not cached or
+     * has changed on disk.
+     */
+    void run(String name) throws IOException {
+        Entry e = getEntry(name);
+        if (e == null) {
+            // let ImageJ find (or complain about) it
+            IJ.runMacroFile(name);
+            return;
+        }
+        run(e.program, name);
+    }
+
+    /**
+     * Returns how the named macro wants objects decoded.
+     */
+    DecodeOptions getOptions(String name) throws IOException {
+        Entry e = getEntry(name);
+        return e != null ? e.options : DecodeOptions.NONE;
+    }
+
+    /*
+     * Returns null for anything we do not run ourselves. Synchronized, as
+     * options may be asked for by a thread prefetching objects while
+     * another one runs macros.
+     */
+    private synchronized Entry getEntry(String name) throws IOException {
+        Entry e = entries.get(name);
+        if (e == null || !e.isCurrent()) {
+            File file = resolve(name);
+            if (file == null) {
+                entries.remove(name);
+                return null;
+            }
+
+            String macro = read(file);
+            e = new Entry(file, compile(macro), DecodeOptions.parse(macro,
+                    name));
+            entries.put(name, e);
+        }
+        return e;
+    }
+
+    private static void run(Program program, String name) {
+        Interpreter interp = new Interpreter();
+        try {
+            // Interpreter.run(String) does this for every fresh Program;
+            // globals live in the Program, so they have to be reset for
+            // every object as well
+            if (program.hasVars()) {
+                interp.saveGlobals(program);
+            }
+            // marks the interpreter as a called macro, so it keeps our
+            // batch mode images
+            interp.runMacro(program, 0, name);
+        } catch (ThreadDeath td) {
+            // stopped by IJProcessor.abort, which cleans up
+            throw td;
+        } catch (Throwable t) {
+            interp.abortMacro();
+            String msg = t.getMessage();
+            if (!(t instanceof RuntimeException && Macro.MACRO_CANCELED
+                    .equals(msg))) {
+                IJ.handleException(t);
+            }
+        }
+    }
+
+    private static String read(File file) throws IOException {
+        byte buffer[] = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(buffer);
+        } finally {
+            in.close();
+        }
+        return new String(buffer, "ISO8859_1");
+    }
+
+    private static Program compile(String macro) {
+        // this is what Macro_Runner and Interpreter do to the text
+        macro = Editor.doInclude(macro);
+        String additional = Interpreter.getAdditionalFunctions();
+        if (additional != null) {
+            if (!(macro.endsWith("\n") || additional.startsWith("\n"))) {
+                macro = macro + "\n" + additional;
+            } else {
+                macro = macro + additional;
+            }
+        }
+
+        return new Tokenizer().tokenize(macro);
+    }
+
+    /*
+     * Mirrors the lookup in Macro_Runner.runMacroFile, returning null for
+     * anything that should not be run through the macro interpreter.
+     */
+    private static File resolve(String name) {
+        if (name.startsWith("ij.jar:") || name.endsWith(".js")
+                || name.endsWith(".bsh") || name.endsWith(".py")) {
+            return null;
+        }
+
+        boolean fullPath = name.startsWith("/") || name.startsWith("\\")
+                || name.indexOf(":\\") == 1 || name.indexOf(":/") == 1;
+
+        String path = name;
+        if (!fullPath && Menus.getMacrosPath() != null) {
+            path = Menus.getMacrosPath() + name;
+        }
+
+        File f = findWithExtension(path, name);
+        if (f == null && !fullPath) {
+            f = findWithExtension(System.getProperty("user.dir")
+                    + File.separator + name, name);
+        }
+        return f;
+    }
+
+    private static File findWithExtension(String path, String name) {
+        boolean hasExtension = new File(name).getName().indexOf('.') >= 0;
+        if (!hasExtension) {
+            File f = new File(path + ".txt");
+            if (f.isFile()) {
+                return f;
+            }
+            f = new File(path + ".ijm");
+            if (f.isFile()) {
+                return f;
+            }
+        }
+        File f = new File(path);
+        return f.isFile() ? f : null;
+    }
+}
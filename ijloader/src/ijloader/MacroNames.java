@@ -0,0 +1,86 @@
+/*
+ * ImageJFind: A Diamond application for interoperating with ImageJ
+ *
+ * Copyright (c) 2006-2008 Carnegie Mellon University. All rights reserved.
+ * Additional copyrights may be listed below.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution in the file named LICENSE.
+ *
+ * Technical and financial contributors are listed in the file named
+ * CREDITS.
+ */
+
+package ijloader;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Macro names as received, mapped to the strings decoded from them.
+ * <p>
+ * A search sends the same name with every object. Looking the raw bytes up
+ * here returns the string decoded the first time, and for objects with one
+ * macro the same one-element array of it, so receiving a known name
+ * allocates nothing. The last {@link #SIZE} distinct names are kept, and
+ * the oldest is replaced when a new one arrives. Not thread-safe.
+ */
+class MacroNames {
+
+    static final int SIZE = 8;
+
+    private final byte keys[][] = new byte[SIZE][];
+
+    private final String names[] = new String[SIZE];
+
+    /* each name alone in an array, shared by every object that has it */
+    private final String singles[][] = new String[SIZE][];
+
+    private int next;
+
+    /**
+     * Returns the name encoded in the first len bytes of buf as UTF-8.
+     */
+    String get(byte buf[], int len) throws UnsupportedEncodingException {
+        return names[find(buf, len)];
+    }
+
+    /**
+     * Returns an array of just the name encoded in the first len bytes of
+     * buf. It is the same array every time, so it must not be changed.
+     */
+    String[] getArray(byte buf[], int len)
+            throws UnsupportedEncodingException {
+        return singles[find(buf, len)];
+    }
+
+    private int find(byte buf[], int len) throws UnsupportedEncodingException {
+        for (int i = 0; i < SIZE; i++) {
+            if (matches(keys[i], buf, len)) {
+                return i;
+            }
+        }
+
+        int i = next;
+        byte key[] = new byte[len];
+        System.arraycopy(buf, 0, key, 0, len);
+        String name = new String(key, "UTF-8").intern();
+        keys[i] = key;
+        names[i] = name;
+        singles[i] = new String[] { name };
+        next = (next + 1) % SIZE;
+        return i;
+    }
+
+    private static boolean matches(byte key[], byte buf[], int len) {
+        if (key == null || key.length != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (key[i] != buf[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * ImageJFind: A Diamond application for interoperating with ImageJ
+ *
+ * Copyright (c) 2006-2008 Carnegie Mellon University. All rights reserved.
+ * Additional copyrights may be listed below.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution in the file named LICENSE.
+ *
+ * Technical and financial contributors are listed in the file named
+ * CREDITS.
+ */
+
+package ijloader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Runs one object through ImageJ: {@link #open} decodes it, {@link #run}
+ * runs each of its macros, and {@link #close} lets go of it. Part of the
+ * decoding may be done ahead of time by {@link #prefetch}, on another
+ * thread.
+ * <p>
+ * Implementations may live in a class loader of their own (see
+ * {@link WorkerPool}), so this interface only deals in JDK types. Results are
+ * reported through {@link IJLoader#writeDiamondAttribute} and
+ * {@link IJLoader#writeResult} on the calling thread.
+ */
+public interface ObjectProcessor {
+    /**
+     * Does whatever part of decoding the image held from 0 to the limit of
+     * image for the named macros can be done while another object is open
+     * on the processor, on the calling thread. Returns what to pass to
+     * {@link #open} along with the same image and names.
+     */
+    Object prefetch(ByteBuffer image, String macroNames[]);
+
+    /**
+     * Decodes the image held from 0 to the limit of image, which must not
+     * change until {@link #close}, for the named macros, starting from what
+     * {@link #prefetch} returned for it if prefetched is not null. Returns
+     * false if the object is too large to run macros on.
+     */
+    boolean open(ByteBuffer image, String macroNames[], Object prefetched)
+            throws IOException;
+
+    /**
+     * Runs the named macro on the open object, and releases what it
+     * created. Unless it is the last macro for the object, it runs on a
+     * copy, so the next one still sees the object as it was decoded.
+     */
+    void run(String macroName, boolean last) throws IOException;
+
+    /**
+     * Lets go of the object opened last, whether or not its macros ran.
+     */
+    void close();
+
+    /**
+     * Asks the macro being run to stop, from another thread. It still has
+     * to return from {@link #run}, which may take a while if it is inside a
+     * plugin that does not check for aborts.
+     */
+    void abort();
+
+    /**
+     * Releases everything the processor has accumulated, between objects,
+     * when memory runs short.
+     */
+    void reset();
+}
@@ -0,0 +1,97 @@
+/*
+ * ImageJFind: A Diamond application for interoperating with ImageJ
+ *
+ * Copyright (c) 2006-2008 Carnegie Mellon University. All rights reserved.
+ * Additional copyrights may be listed below.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution in the file named LICENSE.
+ *
+ * Technical and financial contributors are listed in the file named
+ * CREDITS.
+ */
+
+package ijloader;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An object received from the filter, waiting to be run, and the macros to
+ * run on it.
+ * <p>
+ * The image bytes come from a {@link BufferPool} or shared memory, and the
+ * names of a single macro from {@link MacroNames}, but each object still
+ * allocates this request, a ByteBuffer view of its image, the names array
+ * if it has several macros, and an {@link ObjectResult} per macro. They are
+ * small and short-lived, and do not grow with the image.
+ */
+class ObjectRequest {
+
+    private final int id;
+
+    private final ByteBuffer image;
+
+    private final byte buffer[];
+
+    private final String macroNames[];
+
+    private final long receiveNanos;
+
+    /**
+     * An image read into the first length bytes of a pooled buffer.
+     */
+    ObjectRequest(int id, byte buffer[], int length, String macroNames[],
+            long receiveNanos) {
+        this(id, ByteBuffer.wrap(buffer, 0, length), buffer, macroNames,
+                receiveNanos);
+    }
+
+    /**
+     * An image in shared memory, from 0 to the limit of image.
+     */
+    ObjectRequest(int id, ByteBuffer image, String macroNames[],
+            long receiveNanos) {
+        this(id, image, null, macroNames, receiveNanos);
+    }
+
+    private ObjectRequest(int id, ByteBuffer image, byte buffer[],
+            String macroNames[], long receiveNanos) {
+        this.id = id;
+        this.image = image;
+        this.buffer = buffer;
+        this.macroNames = macroNames;
+        this.receiveNanos = receiveNanos;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    ByteBuffer getImage() {
+        return image;
+    }
+
+    /**
+     * Returns the pooled buffer the image was read into, or null if it is
+     * in shared memory.
+     */
+    byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Returns the names of the macros, in the order they are to run. The
+     * array must not be changed.
+     */
+    String[] getMacroNames() {
+        return macroNames;
+    }
+
+    /**
+     * Returns how long it took to read the object off stdin.
+     */
+    long getReceiveNanos() {
+        return receiveNanos;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * ImageJFind: A Diamond application for interoperating with ImageJ
+ *
+ * Copyright (c) 2006-2008 Carnegie Mellon University. All rights reserved.
+ * Additional copyrights may be listed below.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution in the file named LICENSE.
+ *
+ * Technical and financial contributors are listed in the file named
+ * CREDITS.
+ */
+
+package ijloader;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The attributes and score produced for one object.
+ * <p>
+ * Macros report these a piece at a time while they run; they are collected
+ * here and sent to the filter in one go once the object is finished, so that
+ * results from concurrently running objects cannot interleave.
+ */
+class ObjectResult {
+
+    static final int ATTR_STRING = 1;
+
+    static final int ATTR_BINARY = 2;
+
+    private final int id;
+
+    private final List<String> attrNames = new ArrayList<String>();
+
+    private final List<byte[]> attrValues = new ArrayList<byte[]>();
+
+    private final List<Integer> attrTypes = new ArrayList<Integer>();
+
+    private String result;
+
+    private final long phaseNanos[] = new long[Stats.PHASES];
+
+    ObjectResult(int id) {
+        this.id = id;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    void addAttribute(String name, String value) {
+        addAttribute(name, ATTR_STRING, encode(value));
+    }
+
+    void addAttribute(String name, byte value[]) {
+        addAttribute(name, ATTR_BINARY, value);
+    }
+
+    void addAttribute(String name, int type, byte value[]) {
+        attrNames.add(name);
+        attrTypes.add(type);
+        attrValues.add(value);
+    }
+
+    /**
+     * Adds the attributes of another result, in order, with suffix appended
+     * to their names.
+     */
+    void addAttributes(ObjectResult other, String suffix) {
+        for (String name : other.attrNames) {
+            attrNames.add(name + suffix);
+        }
+        attrTypes.addAll(other.attrTypes);
+        attrValues.addAll(other.attrValues);
+    }
+
+    int getAttributeCount() {
+        return attrNames.size();
+    }
+
+    String getAttributeName(int i) {
+        return attrNames.get(i);
+    }
+
+    int getAttributeType(int i) {
+        return attrTypes.get(i);
+    }
+
+    byte[] getAttributeValue(int i) {
+        return attrValues.get(i);
+    }
+
+    void setResult(String result) {
+        if (this.result != null) {
+            // throw new IllegalStateException("Result already written");
+            // the filter only ever saw the first one
+            Log.warn("Result already written");
+            return;
+        }
+        this.result = result;
+    }
+
+    boolean hasResult() {
+        return result != null;
+    }
+
+    String getResult() {
+        return result;
+    }
+
+    /**
+     * Returns the result as a number, 0 if it does not parse (which is what
+     * the filter makes of it in the text protocol).
+     */
+    double getScore() {
+        try {
+            return Double.parseDouble(result.trim());
+        } catch (NumberFormatException e) {
+            return 0.0;
+        }
+    }
+
+    void setPhaseTime(int phase, long nanos) {
+        phaseNanos[phase] = nanos;
+    }
+
+    long[] getPhaseTimes() {
+        return phaseNanos;
+    }
+
+    static byte[] encode(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * ImageJFind: A Diamond application for interoperating with ImageJ
+ *
+ * Copyright (c) 2006-2008 Carnegie Mellon University. All rights reserved.
+ * Additional copyrights may be listed below.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution in the file named LICENSE.
+ *
+ * Technical and financial contributors are listed in the file named
+ * CREDITS.
+ */
+
+package ijloader;
+
+import ij.ImagePlus;
+import ij.Macro;
+import ij.Undo;
+import ij.WindowManager;
+import ij.gui.ImageWindow;
+import ij.gui.Roi;
+import ij.macro.Interpreter;
+import ij.measure.ResultsTable;
+import ij.plugin.frame.PlugInFrame;
+import ij.plugin.frame.RoiManager;
+import ij.text.TextWindow;
+
+import java.awt.Frame;
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The images, results and ROIs one object leaves in ImageJ, and their
+ * release.
+ * <p>
+ * ImageJ keeps no list of what a macro made, but everything that outlives
+ * the macro is registered somewhere: batch mode images in the interpreter's
+ * image table, displayed images and tables with the window manager, rows in
+ * the system results table, and ROIs on their images, in the ROI Manager and
+ * as the previous selection. {@link #open} notes where those stood before
+ * the object, and {@link #close} releases what was added since, so the cost
+ * grows with what the object created rather than with everything ImageJ
+ * has open (closeAllWindows, which we used to call, also waits 100ms for
+ * every image window it closes). What was there before, such as images or
+ * ROIs a startup macro made, stays; only result rows the object cleared
+ * itself are lost. The undo buffer and the previous selection hold one
+ * thing each, which the object's commands replace, so they are emptied.
+ * <p>
+ * Anything still registered after closing is logged as a leak. With
+ * ijloader.leaks.interval set to n, released images are also followed with
+ * weak references, and every n objects a full collection is forced and the
+ * images that survive it are logged: something, such as a static field in a
+ * plugin, is holding on to them.
+ */
+class ObjectScope {
+
+    private static final int leakInterval = Math.max(0, Integer.getInteger(
+            "ijloader.leaks.interval", 0));
+
+    private final boolean headless;
+
+    /* where things stood when the scope was opened */
+    private final Set<Frame> windows = new HashSet<Frame>();
+
+    /* IDs of batch mode and displayed images */
+    private final Set<Integer> images = new HashSet<Integer>();
+
+    private int imageCount;
+
+    private RoiManager roiManager;
+
+    private int roiCount;
+
+    private int resultRows;
+
+    /* the system results table's columns, if it had any */
+    private final Set<String> resultColumns = new HashSet<String>();
+
+    /* images released since the last leak check */
+    private final Map<Reference<ImagePlus>, String> released = new HashMap<Reference<ImagePlus>, String>();
+
+    private int objects;
+
+    ObjectScope(boolean headless) {
+        this.headless = headless;
+    }
+
+    /**
+     * Starts tracking an object. Batch mode must already be on.
+     */
+    void open() {
+        objects++;
+        if (leakInterval > 0 && objects % leakInterval == 0) {
+            checkLeaks();
+        }
+
+        images.clear();
+        addAll(images, Interpreter.getBatchModeImageIDs());
+        if (!headless) {
+            addAll(images, WindowManager.getIDList());
+            windows.clear();
+            Frame frames[] = WindowManager.getNonImageWindows();
+            for (Frame frame : frames) {
+                windows.add(frame);
+            }
+        }
+        imageCount = countImages();
+
+        roiManager = RoiManager.getRawInstance();
+        roiCount = roiManager != null ? roiManager.getCount() : 0;
+
+        resultColumns.clear();
+        ResultsTable rTable = ResultsTable.getResultsTable();
+        resultRows = rTable != null ? rTable.size() : 0;
+        if (rTable != null && rTable.getLastColumn() >= 0) {
+            for (String heading : rTable.getHeadings()) {
+                resultColumns.add(heading);
+            }
+        }
+    }
+
+    /**
+     * Releases everything the object created since {@link #open}.
+     */
+    void close() {
+        int rows = releaseResults();
+        List<ImagePlus> closed = releaseImages(images);
+        int frames = headless ? 0 : releaseWindows();
+        int rois = releaseRois();
+
+        if (Log.isEnabled(Log.DEBUG)) {
+            Log.debug("Released " + closed.size() + " image(s), " + frames
+                    + " window(s), " + rois + " ROI(s) and " + rows
+                    + " result row(s)");
+        }
+
+        int left = countImages() - imageCount;
+        if (left > 0) {
+            Log.warn(left + " image(s) of object " + objects
+                    + " could not be released");
+        }
+
+        if (leakInterval > 0) {
+            for (ImagePlus imp : closed) {
+                released.put(new WeakReference<ImagePlus>(imp),
+                        "'" + imp.getTitle() + "' of object " + objects);
+            }
+        }
+    }
+
+    /**
+     * Releases everything ImageJ holds on to between objects, whoever
+     * created it: all images, the ROI Manager's ROIs, the system results
+     * table, the clipboard and the undo buffer, and with a display every
+     * other window but the log.
+     */
+    void reset() {
+        ResultsTable rTable = ResultsTable.getResultsTable();
+        if (rTable != null) {
+            rTable.reset();
+        }
+        int images = releaseImages(null).size();
+        ImagePlus.resetClipboard();
+        Macro.setOptions(null);
+
+        RoiManager rm = RoiManager.getRawInstance();
+        if (rm != null) {
+            rm.reset();
+        }
+        roiManager = null;
+
+        int frames = 0;
+        if (!headless) {
+            windows.clear();
+            Frame log = WindowManager.getFrame("Log");
+            if (log != null) {
+                windows.add(log);
+            }
+            frames = releaseWindows();
+        }
+
+        Log.info("Reset ImageJ: released " + images + " image(s) and "
+                + frames + " window(s)");
+    }
+
+    /*
+     * Rows the object added, and the columns if the table had none before
+     * or the object made new ones. If the object cleared rows that were
+     * there before, there is no telling which of the rest are its own, so
+     * they all go.
+     */
+    private int releaseResults() {
+        ResultsTable rTable = ResultsTable.getResultsTable();
+        if (rTable == null
+                || (rTable.size() == 0 && rTable.getLastColumn() < 0)) {
+            return 0;
+        }
+        int rows = rTable.size();
+        if ((resultRows == 0 && resultColumns.isEmpty()) || rows < resultRows) {
+            rTable.reset();
+            return rows;
+        }
+
+        if (rows > resultRows) {
+            rTable.deleteRows(resultRows, rows - 1);
+        }
+        for (String heading : rTable.getHeadings()) {
+            // row labels are not a column of their own
+            if (!resultColumns.contains(heading) && !heading.equals("Label")) {
+                rTable.deleteColumn(heading);
+            }
+        }
+        return rows - resultRows;
+    }
+
+    /* all images, or those whose IDs are not in keep */
+    private List<ImagePlus> releaseImages(Set<Integer> keep) {
+        List<ImagePlus> closed = new ArrayList<ImagePlus>();
+
+        int ids[] = Interpreter.getBatchModeImageIDs();
+        for (int i = ids != null ? ids.length - 1 : -1; i >= 0; i--) {
+            if (keep != null && keep.contains(ids[i])) {
+                continue;
+            }
+            ImagePlus imp = Interpreter.getBatchModeImage(ids[i]);
+            if (imp != null) {
+                Interpreter.removeBatchModeImage(imp);
+                closed.add(imp);
+            }
+        }
+        WindowManager.setTempCurrentImage(null);
+
+        // displayed images, if the macro left batch mode
+        if (!headless) {
+            ids = WindowManager.getIDList();
+            if (ids != null) {
+                for (int id : ids) {
+                    if (keep != null && keep.contains(id)) {
+                        continue;
+                    }
+                    ImagePlus imp = WindowManager.getImage(id);
+                    ImageWindow win = imp != null ? imp.getWindow() : null;
+                    if (win != null) {
+                        imp.changes = false;
+                        win.close();
+                        closed.add(imp);
+                    }
+                }
+            }
+        }
+
+        // the undo buffer and the previous selection may refer to them
+        Undo.reset();
+        Roi.previousRoi = null;
+        return closed;
+    }
+
+    private int countImages() {
+        int count = Interpreter.getBatchModeImageCount();
+        if (!headless) {
+            count += WindowManager.getWindowCount();
+        }
+        return count;
+    }
+
+    private static void addAll(Set<Integer> set, int ids[]) {
+        if (ids != null) {
+            for (int id : ids) {
+                set.add(id);
+            }
+        }
+    }
+
+    /* tables, plots, the ROI Manager and so on; only with a display */
+    private int releaseWindows() {
+        int count = 0;
+        Frame frames[] = WindowManager.getNonImageWindows();
+        for (Frame frame : frames) {
+            if (windows.contains(frame)) {
+                continue;
+            }
+            if (frame instanceof PlugInFrame) {
+                ((PlugInFrame) frame).close();
+            } else if (frame instanceof TextWindow) {
+                ((TextWindow) frame).close();
+            } else {
+                frame.dispose();
+            }
+            count++;
+        }
+        windows.clear();
+        return count;
+    }
+
+    /*
+     * ROIs on images go with them, and the batch mode ROI Manager with the
+     * interpreter. The ROIs the object added to a ROI Manager that was
+     * already open are deleted; one it opened was closed with the windows.
+     */
+    private int releaseRois() {
+        RoiManager rm = roiManager;
+        roiManager = null;
+        if (rm == null || rm != RoiManager.getRawInstance()) {
+            return 0;
+        }
+        int count = rm.getCount();
+        int added = count - roiCount;
+        if (added <= 0) {
+            return 0;
+        }
+        if (roiCount == 0) {
+            rm.reset();
+        } else {
+            int indexes[] = new int[added];
+            for (int i = 0; i < added; i++) {
+                indexes[i] = roiCount + i;
+            }
+            // deletes just the selected ones, without asking
+            rm.setSelectedIndexes(indexes);
+            rm.runCommand("Delete");
+        }
+        return added;
+    }
+
+    /* logs released images that survive a full collection, once each */
+    private void checkLeaks() {
+        System.gc();
+        for (Map.Entry<Reference<ImagePlus>, String> e : released.entrySet()) {
+            if (e.getKey().get() != null) {
+                Log.warn("Image " + e.getValue() + " is still reachable "
+                        + "after it was released");
+            }
+        }
+        released.clear();
+    }
+}
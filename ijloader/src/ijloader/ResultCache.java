@@ -0,0 +1,653 @@
+/*
+ * ImageJFind: A Diamond application for interoperating with ImageJ
+ *
+ * Copyright (c) 2006-2008 Carnegie Mellon University. All rights reserved.
+ * Additional copyrights may be listed below.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution in the file named LICENSE.
+ *
+ * Technical and financial contributors are listed in the file named
+ * CREDITS.
+ */
+
+package ijloader;
+
+import ij.ImageJ;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Results of earlier searches, kept on disk and replayed for objects seen
+ * before.
+ * <p>
+ * Analysts run the same macro over the same collection many times while
+ * they tune other filters. The cache key is a SHA-256 hash of the object's
+ * own hash (see {@link #hashImage}), the macro name, and a fingerprint of
+ * everything the macro could read: the ImageJ version, the settings that
+ * change how objects are decoded, and the contents of the macros and
+ * plugins directories, which hold the search's blob and the Diamond Filter
+ * plugin.
+ * A hit returns the score and attributes without decoding the object or
+ * starting the interpreter. Macros whose results depend on anything else
+ * (the time, random numbers, files elsewhere) should not be run with the
+ * cache on.
+ * <p>
+ * Each result is a file named after its key. The index of them is a hash
+ * table in a memory-mapped file with a fixed number of slots, each holding
+ * a key, the size of its file and when it was last used. When the files
+ * grow past the size limit, or the table gets three quarters full, the
+ * least recently used tenth is removed. The index is locked while it is
+ * used, so searches running at the same time can share the directory.
+ */
+class ResultCache {
+
+    private static final int MAGIC = 0x494A5243;
+
+    private static final int VERSION = 1;
+
+    private static final int KEY_SIZE = 32;
+
+    /* header: magic, version, slot count, entry count, clock, total bytes */
+    private static final int HEADER_SIZE = 64;
+
+    private static final int H_MAGIC = 0;
+
+    private static final int H_VERSION = 4;
+
+    private static final int H_SLOTS = 8;
+
+    private static final int H_COUNT = 12;
+
+    private static final int H_CLOCK = 16;
+
+    private static final int H_BYTES = 24;
+
+    /* slot: key, last use (0 if empty), file size */
+    private static final int SLOT_SIZE = 48;
+
+    private static final int S_USED = 32;
+
+    private static final int S_SIZE = 40;
+
+    /* the fingerprint is rechecked at most this often */
+    private static final long FINGERPRINT_NANOS = 1000000000L;
+
+    private static final String INPUTS[] = { "macros", "plugins" };
+
+    /* settings that change what the macro sees of an object */
+    private static final String SETTINGS[] = {
+            "ijloader.object.maxMegabytes", "ijloader.object.oversize" };
+
+    private final File dir;
+
+    private final long maxBytes;
+
+    private final int slots;
+
+    private final RandomAccessFile indexFile;
+
+    private final MappedByteBuffer index;
+
+    private final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>();
+
+    /* guarded by this */
+    private byte fingerprint[];
+
+    private String inputs;
+
+    private long checked;
+
+    private long hits;
+
+    private long misses;
+
+    private ResultCache(File dir, long maxBytes, int slots)
+            throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.slots = slots;
+
+        indexFile = new RandomAccessFile(new File(dir, "index"), "rw");
+        FileChannel channel = indexFile.getChannel();
+        FileLock lock = channel.lock();
+        try {
+            long size = HEADER_SIZE + (long) slots * SLOT_SIZE;
+            boolean fresh = channel.size() != size;
+            if (fresh) {
+                indexFile.setLength(size);
+            }
+            index = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (fresh || index.getInt(H_MAGIC) != MAGIC
+                    || index.getInt(H_VERSION) != VERSION
+                    || index.getInt(H_SLOTS) != slots) {
+                reset();
+            }
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Opens the cache in the directory named by ijloader.cache.dir, or
+     * returns null if it is not set or the cache cannot be opened.
+     */
+    static ResultCache open() {
+        String path = System.getProperty("ijloader.cache.dir");
+        if (path == null || path.length() == 0) {
+            return null;
+        }
+        long maxBytes = Math.max(1, Long.getLong(
+                "ijloader.cache.maxMegabytes", 256)) << 20;
+        int slots = Math.max(16, Integer.getInteger(
+                "ijloader.cache.slots", 65536));
+
+        File dir = new File(path);
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create " + dir);
+            }
+            ResultCache cache = new ResultCache(dir, maxBytes, slots);
+            Log.info("Caching results in " + dir + " (" + cache.count()
+                    + " entries)");
+            return cache;
+        } catch (IOException e) {
+            Log.warn("Not caching results: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the SHA-256 hash of an image, which {@link #getKey} combines
+     * with each macro run on it, so the image is only hashed once.
+     */
+    byte[] hashImage(ByteBuffer image) {
+        MessageDigest md = getDigest();
+        md.update(image.duplicate());
+        return md.digest();
+    }
+
+    /**
+     * Returns the key for running the named macro on an image with the
+     * given hash, or null if the macro's inputs cannot be read.
+     */
+    byte[] getKey(byte imageHash[], String macroName) {
+        try {
+            byte inputs[] = getFingerprint();
+            MessageDigest md = getDigest();
+            md.update(inputs);
+            md.update(ObjectResult.encode(macroName));
+            md.update((byte) 0);
+            md.update(imageHash);
+            return md.digest();
+        } catch (IOException e) {
+            Log.warn("Cannot compute result cache key: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the result stored under key, with the given request id, or
+     * null if there is none.
+     */
+    ObjectResult get(int id, byte key[]) {
+        int size;
+        synchronized (this) {
+            FileLock lock = lock();
+            try {
+                int slot = lock != null ? find(key) : -1;
+                if (slot < 0) {
+                    misses++;
+                    return null;
+                }
+                long clock = index.getLong(H_CLOCK) + 1;
+                index.putLong(H_CLOCK, clock);
+                index.putLong(slotOffset(slot) + S_USED, clock);
+                size = index.getInt(slotOffset(slot) + S_SIZE);
+            } finally {
+                release(lock);
+            }
+        }
+
+        try {
+            ObjectResult r = read(entryFile(key), size, id);
+            synchronized (this) {
+                hits++;
+            }
+            return r;
+        } catch (IOException e) {
+            // removed by another search between the lookup and the read, or
+            // damaged; forget it
+            Log.warn("Dropping result cache entry: " + e);
+            remove(key);
+            synchronized (this) {
+                misses++;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Stores a result under key, evicting old ones if there is no room.
+     */
+    void put(byte key[], ObjectResult r) {
+        byte data[];
+        File file = entryFile(key);
+        try {
+            data = serialize(r);
+            File parent = file.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Cannot create " + parent);
+            }
+            File tmp = File.createTempFile("entry", ".tmp", parent);
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("Cannot rename " + tmp + " to " + file);
+            }
+        } catch (IOException e) {
+            Log.warn("Cannot store result in cache: " + e);
+            return;
+        }
+
+        synchronized (this) {
+            FileLock lock = lock();
+            if (lock == null) {
+                return;
+            }
+            try {
+                int slot = find(key);
+                if (slot >= 0) {
+                    addBytes(data.length
+                            - index.getInt(slotOffset(slot) + S_SIZE));
+                } else {
+                    makeRoom(data.length);
+                    slot = insert(key);
+                    index.putInt(H_COUNT, count() + 1);
+                    addBytes(data.length);
+                }
+                long clock = index.getLong(H_CLOCK) + 1;
+                index.putLong(H_CLOCK, clock);
+                index.putLong(slotOffset(slot) + S_USED, clock);
+                index.putInt(slotOffset(slot) + S_SIZE, data.length);
+            } finally {
+                release(lock);
+            }
+        }
+    }
+
+    /**
+     * Writes the index out and logs how well the cache did.
+     */
+    synchronized void close() {
+        index.force();
+        try {
+            indexFile.close();
+        } catch (IOException e) {
+            // nothing was pending
+        }
+        Log.info("Result cache: " + hits + " hits, " + misses + " misses, "
+                + count() + " entries");
+    }
+
+    /* everything the macro may read, hashed; rehashed when a file changes */
+    private synchronized byte[] getFingerprint() throws IOException {
+        long now = System.nanoTime();
+        if (fingerprint != null && now - checked < FINGERPRINT_NANOS) {
+            return fingerprint;
+        }
+        checked = now;
+
+        File root = new File(System.getProperty("user.dir"));
+        List<File> files = new ArrayList<File>();
+        for (String name : INPUTS) {
+            listFiles(new File(root, name), files);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (File f : files) {
+            sb.append(f.getPath()).append('\0').append(f.length()).append(
+                    '\0').append(f.lastModified()).append('\n');
+        }
+        String listing = sb.toString();
+        if (listing.equals(inputs)) {
+            return fingerprint;
+        }
+
+        MessageDigest md = getDigest();
+        md.update(ObjectResult.encode(ImageJ.VERSION + ImageJ.BUILD));
+        for (String name : SETTINGS) {
+            md.update(ObjectResult.encode(name + "="
+                    + System.getProperty(name, "")));
+            md.update((byte) 0);
+        }
+        byte buf[] = new byte[1 << 16];
+        int prefix = root.getPath().length();
+        for (File f : files) {
+            md.update(ObjectResult.encode(f.getPath().substring(prefix)));
+            md.update((byte) 0);
+            InputStream in = new FileInputStream(f);
+            try {
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    md.update(buf, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+        }
+        fingerprint = md.digest();
+        inputs = listing;
+        Log.debug("Hashed the macro inputs for the result cache");
+        return fingerprint;
+    }
+
+    private static void listFiles(File dir, List<File> files) {
+        File list[] = dir.listFiles();
+        if (list == null) {
+            return;
+        }
+        Arrays.sort(list);
+        for (File f : list) {
+            if (f.isDirectory()) {
+                listFiles(f, files);
+            } else {
+                files.add(f);
+            }
+        }
+    }
+
+    private MessageDigest getDigest() {
+        MessageDigest md = digests.get();
+        if (md == null) {
+            try {
+                md = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+            digests.set(md);
+        }
+        md.reset();
+        return md;
+    }
+
+    /*
+     * Entry files:
+     *
+     * u32 magic
+     * u32 attribute count
+     * attribute records: u8 type, u32 name length, name (UTF-8),
+     *                    u32 value length, value
+     * u32 result length, result (UTF-8)
+     */
+    private static byte[] serialize(ObjectResult r) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(r.getAttributeCount());
+        for (int i = 0; i < r.getAttributeCount(); i++) {
+            byte name[] = ObjectResult.encode(r.getAttributeName(i));
+            byte value[] = r.getAttributeValue(i);
+            out.writeByte(r.getAttributeType(i));
+            out.writeInt(name.length);
+            out.write(name);
+            out.writeInt(value.length);
+            out.write(value);
+        }
+        byte result[] = ObjectResult.encode(r.getResult());
+        out.writeInt(result.length);
+        out.write(result);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static ObjectResult read(File file, int size, int id)
+            throws IOException {
+        byte data[] = new byte[size];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+
+        in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readInt() != MAGIC) {
+            throw new IOException(file + " is not a cached result");
+        }
+        ObjectResult r = new ObjectResult(id);
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            int type = in.readUnsignedByte();
+            String name = new String(readField(in), "UTF-8");
+            r.addAttribute(name, type, readField(in));
+        }
+        r.setResult(new String(readField(in), "UTF-8"));
+        return r;
+    }
+
+    private static byte[] readField(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0 || len > in.available()) {
+            throw new EOFException("Truncated cached result");
+        }
+        byte field[] = new byte[len];
+        in.readFully(field);
+        return field;
+    }
+
+    /* spread over 256 directories, so none gets too large */
+    private File entryFile(byte key[]) {
+        StringBuilder sb = new StringBuilder(KEY_SIZE * 2);
+        for (byte b : key) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        String hex = sb.toString();
+        return new File(new File(dir, hex.substring(0, 2)), hex);
+    }
+
+    /* returns null, and logs, if the index cannot be locked */
+    private FileLock lock() {
+        try {
+            return indexFile.getChannel().lock();
+        } catch (IOException e) {
+            Log.warn("Cannot lock result cache index: " + e);
+            return null;
+        }
+    }
+
+    private static void release(FileLock lock) {
+        if (lock == null) {
+            return;
+        }
+        try {
+            lock.release();
+        } catch (IOException e) {
+            Log.warn("Cannot unlock result cache index: " + e);
+        }
+    }
+
+    /* the remaining methods need the lock */
+
+    private void reset() {
+        for (int i = 0; i < HEADER_SIZE + slots * SLOT_SIZE; i += 8) {
+            index.putLong(i, 0);
+        }
+        index.putInt(H_MAGIC, MAGIC);
+        index.putInt(H_VERSION, VERSION);
+        index.putInt(H_SLOTS, slots);
+        Log.info("Created result cache index in " + dir);
+    }
+
+    private int count() {
+        return index.getInt(H_COUNT);
+    }
+
+    private void addBytes(long delta) {
+        index.putLong(H_BYTES, index.getLong(H_BYTES) + delta);
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private boolean isUsed(int slot) {
+        return index.getLong(slotOffset(slot) + S_USED) != 0;
+    }
+
+    private int home(ByteBuffer b, int offset) {
+        return (b.getInt(offset) & 0x7FFFFFFF) % slots;
+    }
+
+    private boolean keyEquals(int slot, byte key[]) {
+        int off = slotOffset(slot);
+        for (int i = 0; i < KEY_SIZE; i++) {
+            if (index.get(off + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int find(byte key[]) {
+        int slot = home(ByteBuffer.wrap(key), 0);
+        while (isUsed(slot)) {
+            if (keyEquals(slot, key)) {
+                return slot;
+            }
+            slot = (slot + 1) % slots;
+        }
+        return -1;
+    }
+
+    /* there must be a free slot */
+    private int insert(byte key[]) {
+        int slot = home(ByteBuffer.wrap(key), 0);
+        while (isUsed(slot)) {
+            slot = (slot + 1) % slots;
+        }
+        int off = slotOffset(slot);
+        for (int i = 0; i < KEY_SIZE; i++) {
+            index.put(off + i, key[i]);
+        }
+        return slot;
+    }
+
+    private void remove(byte key[]) {
+        synchronized (this) {
+            FileLock lock = lock();
+            if (lock == null) {
+                return;
+            }
+            try {
+                int slot = find(key);
+                if (slot >= 0) {
+                    removeSlot(slot);
+                }
+            } finally {
+                release(lock);
+            }
+        }
+        entryFile(key).delete();
+    }
+
+    /*
+     * Empties a slot and moves later entries of the same probe run back,
+     * so that lookups need no tombstones.
+     */
+    private void removeSlot(int slot) {
+        addBytes(-index.getInt(slotOffset(slot) + S_SIZE));
+        index.putInt(H_COUNT, count() - 1);
+
+        int hole = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) % slots;
+            if (!isUsed(next)) {
+                break;
+            }
+            int home = home(index, slotOffset(next));
+            boolean stays = hole <= next ? home > hole && home <= next
+                    : home > hole || home <= next;
+            if (stays) {
+                continue;
+            }
+            int from = slotOffset(next);
+            int to = slotOffset(hole);
+            for (int i = 0; i < SLOT_SIZE; i += 8) {
+                index.putLong(to + i, index.getLong(from + i));
+            }
+            hole = next;
+        }
+        for (int i = 0; i < SLOT_SIZE; i += 8) {
+            index.putLong(slotOffset(hole) + i, 0);
+        }
+    }
+
+    /* evicts the least recently used entries until size more bytes fit */
+    private void makeRoom(int size) {
+        int maxCount = slots * 3 / 4;
+        if (count() < maxCount && index.getLong(H_BYTES) + size <= maxBytes) {
+            return;
+        }
+
+        List<Integer> used = new ArrayList<Integer>();
+        for (int slot = 0; slot < slots; slot++) {
+            if (isUsed(slot)) {
+                used.add(slot);
+            }
+        }
+        Integer order[] = used.toArray(new Integer[used.size()]);
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                long ua = index.getLong(slotOffset(a) + S_USED);
+                long ub = index.getLong(slotOffset(b) + S_USED);
+                return ua < ub ? -1 : (ua == ub ? 0 : 1);
+            }
+        });
+
+        // read the keys first, since removing moves entries around
+        long targetBytes = maxBytes - maxBytes / 10 - size;
+        int targetCount = maxCount - maxCount / 10;
+        long bytes = index.getLong(H_BYTES);
+        int count = order.length;
+        List<byte[]> victims = new ArrayList<byte[]>();
+        for (int i = 0; i < order.length
+                && (bytes > targetBytes || count > targetCount); i++) {
+            int off = slotOffset(order[i]);
+            byte key[] = new byte[KEY_SIZE];
+            for (int j = 0; j < KEY_SIZE; j++) {
+                key[j] = index.get(off + j);
+            }
+            victims.add(key);
+            bytes -= index.getInt(off + S_SIZE);
+            count--;
+        }
+        for (byte key[] : victims) {
+            int slot = find(key);
+            if (slot >= 0) {
+                removeSlot(slot);
+            }
+            entryFile(key).delete();
+        }
+        if (Log.isEnabled(Log.DEBUG)) {
+            Log.debug("Evicted " + victims.size() + " cached results");
+        }
+    }
+}
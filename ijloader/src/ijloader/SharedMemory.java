@@ -0,0 +1,88 @@
+/*
+ * ImageJFind: A Diamond application for interoperating with ImageJ
+ *
+ * Copyright (c) 2006-2008 Carnegie Mellon University. All rights reserved.
+ * Additional copyrights may be listed below.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution in the file named LICENSE.
+ *
+ * Technical and financial contributors are listed in the file named
+ * CREDITS.
+ */
+
+package ijloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A file the filter writes objects into, mapped into our address space.
+ * <p>
+ * Sending an object through stdin copies it into the pipe and out again.
+ * Instead the filter can copy it into this file (normally in /dev/shm) and
+ * send only where it is; the decoder then reads it from the mapping. The
+ * file is opened before we answer HELLO, after which the filter unlinks it,
+ * so it goes away with both processes. The filter may grow the file, and
+ * the mapping is redone when an object lies past its end.
+ * <p>
+ * The filter must leave an object alone until its result has been sent.
+ * Only the thread reading stdin may call {@link #get}.
+ */
+class SharedMemory {
+
+    private final FileChannel channel;
+
+    private MappedByteBuffer map;
+
+    private SharedMemory(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Opens the file, or returns null if it cannot be (the filter then sends
+     * objects through stdin).
+     */
+    static SharedMemory open(File file) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            return new SharedMemory(raf.getChannel());
+        } catch (IOException e) {
+            Log.warn("Cannot open shared memory file " + file + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the length bytes at offset, as a buffer from 0 to its limit.
+     */
+    ByteBuffer get(int offset, int length) throws IOException {
+        long end = (long) offset + length;
+        if (offset < 0 || length < 0) {
+            throw new IOException("Bad shared memory region " + offset + "+"
+                    + length);
+        }
+        if (map == null || end > map.capacity()) {
+            long size = Math.min(channel.size(), Integer.MAX_VALUE);
+            if (end > size) {
+                throw new IOException("Shared memory region " + offset + "+"
+                        + length + " is past the end of the file (" + size
+                        + " bytes)");
+            }
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (Log.isEnabled(Log.DEBUG)) {
+                Log.debug("Mapped " + size + " bytes of shared memory");
+            }
+        }
+
+        ByteBuffer b = map.duplicate();
+        b.position(offset);
+        b.limit((int) end);
+        return b.slice();
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * ImageJFind: A Diamond application for interoperating with ImageJ
+ *
+ * Copyright (c) 2006-2008 Carnegie Mellon University. All rights reserved.
+ * Additional copyrights may be listed below.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution in the file named LICENSE.
+ *
+ * Technical and financial contributors are listed in the file named
+ * CREDITS.
+ */
+
+package ijloader;
+
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time spent in each phase of an object, per macro.
+ * <p>
+ * Every finished object adds its phase times to a histogram for its macro
+ * and phase. The histograms have log-linear buckets (eight per power of
+ * two, so percentiles are within 12.5%) and exact counts, sums and maxima.
+ * The report is a tab-separated table, sent in reply to a stats request and
+ * optionally written to a file every so often. Counts of events such as
+ * timeouts follow in a second table, if there have been any, and then how
+ * often and how long each garbage collector has run and how much memory
+ * the JVM holds.
+ * <p>
+ * Workers add an object's times while holding the output's lock, right
+ * after writing its result, and the report is made under the same lock, so
+ * it covers exactly the results sent before it. An object answered by its
+ * deadline counts as a timeout instead.
+ * <p>
+ * The phase numbers are used by the workers' copies of IJProcessor, so this
+ * class is shared between class loaders and public.
+ */
+public class Stats {
+
+    /* reading the image and macro name off stdin */
+    public static final int RECEIVE = 0;
+
+    public static final int DECODE = 1;
+
+    public static final int MACRO = 2;
+
+    /* closing windows, draining batch mode images, resetting results */
+    public static final int CLEANUP = 3;
+
+    /* encoding and writing the result to stdout */
+    public static final int EMIT = 4;
+
+    /* from a worker taking the object until its result is written */
+    public static final int TOTAL = 5;
+
+    static final int PHASES = 6;
+
+    private static final String PHASE_NAMES[] = { "receive", "decode",
+            "macro", "cleanup", "emit", "total" };
+
+    private static final ConcurrentMap<String, Histogram[]> macros = new ConcurrentHashMap<String, Histogram[]>();
+
+    private static final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+    private Stats() {
+    }
+
+    static void add(String macroName, long phaseNanos[]) {
+        Histogram h[] = macros.get(macroName);
+        if (h == null) {
+            h = new Histogram[PHASES];
+            for (int i = 0; i < PHASES; i++) {
+                h[i] = new Histogram();
+            }
+            Histogram old[] = macros.putIfAbsent(macroName, h);
+            if (old != null) {
+                h = old;
+            }
+        }
+        for (int i = 0; i < PHASES; i++) {
+            h[i].add(phaseNanos[i]);
+        }
+    }
+
+    /**
+     * Adds one to the named counter.
+     */
+    static void count(String name) {
+        AtomicLong c = counters.get(name);
+        if (c == null) {
+            c = new AtomicLong();
+            AtomicLong old = counters.putIfAbsent(name, c);
+            if (old != null) {
+                c = old;
+            }
+        }
+        c.incrementAndGet();
+    }
+
+    static String report() {
+        StringBuilder sb = new StringBuilder(
+                "# macro\tphase\tcount\tmean_ms\tp50_ms\tp95_ms\tp99_ms\tmax_ms\n");
+        Map<String, Histogram[]> sorted = new TreeMap<String, Histogram[]>(
+                macros);
+        for (Map.Entry<String, Histogram[]> e : sorted.entrySet()) {
+            for (int i = 0; i < PHASES; i++) {
+                sb.append(e.getKey()).append('\t').append(PHASE_NAMES[i]);
+                e.getValue()[i].appendTo(sb);
+                sb.append('\n');
+            }
+        }
+        if (!counters.isEmpty()) {
+            sb.append("# counter\tcount\n");
+            Map<String, AtomicLong> counts = new TreeMap<String, AtomicLong>(
+                    counters);
+            for (Map.Entry<String, AtomicLong> e : counts.entrySet()) {
+                sb.append(e.getKey()).append('\t').append(e.getValue().get())
+                        .append('\n');
+            }
+        }
+
+        sb.append("# collector\tcollections\ttime_ms\n");
+        for (GarbageCollectorMXBean gc : ManagementFactory
+                .getGarbageCollectorMXBeans()) {
+            sb.append(gc.getName()).append('\t').append(
+                    gc.getCollectionCount()).append('\t').append(
+                    gc.getCollectionTime()).append('\n');
+        }
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        sb.append("# memory\tused_mb\tcommitted_mb\tmax_mb\n");
+        appendUsage(sb, "heap", memory.getHeapMemoryUsage());
+        appendUsage(sb, "non-heap", memory.getNonHeapMemoryUsage());
+        return sb.toString();
+    }
+
+    /* max is -1 if undefined */
+    private static void appendUsage(StringBuilder sb, String name,
+            MemoryUsage usage) {
+        sb.append(name).append('\t').append(usage.getUsed() >> 20).append(
+                '\t').append(usage.getCommitted() >> 20).append('\t').append(
+                usage.getMax() < 0 ? -1 : usage.getMax() >> 20).append('\n');
+    }
+
+    /**
+     * Writes the report to a file every interval seconds, replacing the
+     * previous one.
+     */
+    static void startDump(final File file, final long intervalSeconds) {
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(intervalSeconds * 1000);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    dump(file);
+                }
+            }
+        }, "IJLoader stats dump");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    static void dump(File file) {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            Writer w = new OutputStreamWriter(new FileOutputStream(tmp),
+                    "UTF-8");
+            try {
+                w.write(report());
+            } finally {
+                w.close();
+            }
+            if (!tmp.renameTo(file)) {
+                Log.warn("Could not replace " + file);
+            }
+        } catch (IOException e) {
+            Log.warn("Could not write stats to " + file + ": " + e);
+        }
+    }
+
+    private static class Histogram {
+
+        /* values below this many microseconds get a bucket each */
+        private static final int LINEAR = 16;
+
+        private static final int SUB_BUCKET_BITS = 3;
+
+        private final long buckets[] = new long[LINEAR + 64
+                * (1 << SUB_BUCKET_BITS)];
+
+        private long count;
+
+        private long sum;
+
+        private long max;
+
+        synchronized void add(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            buckets[bucket(micros)]++;
+            count++;
+            sum += nanos;
+            max = Math.max(max, nanos);
+        }
+
+        synchronized void appendTo(StringBuilder sb) {
+            sb.append('\t').append(count);
+            appendMillis(sb, count == 0 ? 0 : sum / count);
+            appendMillis(sb, percentile(0.50));
+            appendMillis(sb, percentile(0.95));
+            appendMillis(sb, percentile(0.99));
+            appendMillis(sb, max);
+        }
+
+        /* upper bound of the bucket holding the given rank, in nanoseconds */
+        private long percentile(double p) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(p * count);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return Math.min(max, upperBound(i) * 1000);
+                }
+            }
+            return max;
+        }
+
+        private static int bucket(long micros) {
+            if (micros < LINEAR) {
+                return (int) micros;
+            }
+            int exp = 63 - Long.numberOfLeadingZeros(micros);
+            int sub = (int) (micros >>> (exp - SUB_BUCKET_BITS))
+                    & ((1 << SUB_BUCKET_BITS) - 1);
+            return LINEAR + ((exp - 4) << SUB_BUCKET_BITS) + sub;
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < LINEAR) {
+                return bucket + 1;
+            }
+            int exp = ((bucket - LINEAR) >> SUB_BUCKET_BITS) + 4;
+            int sub = (bucket - LINEAR) & ((1 << SUB_BUCKET_BITS) - 1);
+            long mantissa = (1 << SUB_BUCKET_BITS) + sub + 1;
+            return mantissa << (exp - SUB_BUCKET_BITS);
+        }
+
+        private static void appendMillis(StringBuilder sb, long nanos) {
+            sb.append('\t').append(
+                    String.format(Locale.US, "%.3f", nanos / 1e6));
+        }
+    }
+}
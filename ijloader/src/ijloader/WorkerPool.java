@@ -0,0 +1,666 @@
+/*
+ * ImageJFind: A Diamond application for interoperating with ImageJ
+ *
+ * Copyright (c) 2006-2008 Carnegie Mellon University. All rights reserved.
+ * Additional copyrights may be listed below.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution in the file named LICENSE.
+ *
+ * Technical and financial contributors are listed in the file named
+ * CREDITS.
+ */
+
+package ijloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Threads that take objects off a queue and run them.
+ * <p>
+ * ImageJ keeps the interpreter, the batch mode image list, the window list
+ * and the system results table in static fields, so two objects can only run
+ * at the same time if they see different copies of those classes. When asked
+ * to isolate, every worker loads ImageJ (and the parts of IJLoader that touch
+ * it) through a class loader of its own. The heap and the JDK classes are
+ * still shared by all of them, but nothing else: every worker pays again for
+ * loading, verifying and compiling the ImageJ classes it uses, in metaspace
+ * (tens of MiB with a few plugins) and in warm-up time before its macros run
+ * at full speed. Workers only pay for that if they can run at once, so there
+ * should be no more of them than processors, and fewer if memory is tight;
+ * IJLoader warns about more.
+ * <p>
+ * With ijloader.timeout.millis set, an object that runs longer than that is
+ * answered with the ijloader.timeout.score fallback and an
+ * {@link #TIMED_OUT} attribute, and its worker is asked to abort. The
+ * worker takes the next object once the aborted one returns; whatever it
+ * produces by then is thrown away.
+ * <p>
+ * When the heap fills up past its watermark (see {@link HeapMonitor}),
+ * every worker resets ImageJ before its next object.
+ * <p>
+ * An object may name several macros. Those not answered from the cache run
+ * in turn on one decoding of it, and the object gets one result: all their
+ * attributes, named with a dot and the macro name appended, each macro's
+ * score as an attribute named {@link #SCORE} followed by the macro name,
+ * and the lowest score, so that it only passes the filter's threshold if
+ * all of them do. Receiving, decoding and sending
+ * the object are counted in the statistics of the first macro.
+ * <p>
+ * With ijloader.prefetch set to n, every worker has a thread of its own that
+ * takes objects off the queue ahead of it, looks them up in the cache and
+ * does what decoding can be done outside ImageJ (see
+ * {@link ObjectProcessor#prefetch}) while the worker runs macros, keeping up
+ * to n objects ready for it.
+ */
+class WorkerPool {
+
+    /*
+     * Classes that must be the same for every worker: the static entry
+     * points macros and plugins report results through, the interface
+     * workers are driven through, and the log and statistics.
+     */
+    private static final String SHARED[] = { "ijloader.IJLoader",
+            "ijloader.ObjectProcessor", "ijloader.Log", "ijloader.Stats" };
+
+    static final String TIMED_OUT = "ijloader.timed-out";
+
+    static final String REFUSED = "ijloader.refused";
+
+    static final String SCORE = "ijloader.score.";
+
+    private static final ObjectRequest STOP = new ObjectRequest(0,
+            (ByteBuffer) null, null, 0);
+
+    private final BlockingQueue<ObjectRequest> queue;
+
+    private final Thread threads[];
+
+    /* one per worker, or none if objects are not prefetched */
+    private final Thread prefetchers[];
+
+    private final IJLoader.IJLoaderOutputStream out;
+
+    private final BufferPool buffers;
+
+    /* null unless results are cached */
+    private final ResultCache cache;
+
+    /* 0 and null unless objects have a deadline */
+    private final long timeoutMillis;
+
+    private final ScheduledExecutorService watchdog;
+
+    private final String timeoutScore;
+
+    /* null unless the heap is watched */
+    private final HeapMonitor heap;
+
+    WorkerPool(int workers, boolean isolate,
+            IJLoader.IJLoaderOutputStream out, BufferPool buffers,
+            ResultCache cache) throws IOException {
+        this.out = out;
+        this.buffers = buffers;
+        this.cache = cache;
+        timeoutMillis = Math.max(0, Long.getLong("ijloader.timeout.millis",
+                0));
+        watchdog = timeoutMillis > 0 ? newWatchdog() : null;
+        timeoutScore = getTimeoutScore();
+        heap = HeapMonitor.open();
+        int prefetch = Math.max(0, Integer.getInteger("ijloader.prefetch", 0));
+        queue = new ArrayBlockingQueue<ObjectRequest>(workers * 2);
+        threads = new Thread[workers];
+        prefetchers = new Thread[prefetch > 0 ? workers : 0];
+
+        for (int i = 0; i < workers; i++) {
+            ObjectProcessor processor = isolate ? newIsolatedProcessor()
+                    : new IJProcessor();
+            final Worker worker = new Worker(processor, prefetch);
+            threads[i] = new Thread(worker, "IJLoader worker " + i);
+            if (prefetch > 0) {
+                prefetchers[i] = new Thread(new Runnable() {
+                    public void run() {
+                        worker.prefetchObjects();
+                    }
+                }, "IJLoader prefetcher " + i);
+            }
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : prefetchers) {
+            t.start();
+        }
+    }
+
+    int size() {
+        return threads.length;
+    }
+
+    void submit(ObjectRequest request) throws InterruptedException {
+        queue.put(request);
+    }
+
+    /**
+     * Waits for every queued object to finish, then stops the workers.
+     */
+    void shutdown() throws InterruptedException {
+        for (int i = 0; i < threads.length; i++) {
+            queue.put(STOP);
+        }
+        for (Thread t : prefetchers) {
+            t.join();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        if (watchdog != null) {
+            watchdog.shutdownNow();
+        }
+    }
+
+    /**
+     * An object taken off the queue, and what was found out about it before
+     * its macros run.
+     */
+    private static class Pending {
+        final ObjectRequest request;
+
+        boolean prepared;
+
+        ObjectResult results[];
+
+        /* cache keys, null where not cached */
+        byte keys[][];
+
+        /* which macros have to run, the first and last of them */
+        boolean pending[];
+
+        String pendingNames[];
+
+        int first = -1;
+
+        int last = -1;
+
+        /* from ObjectProcessor.prefetch, or null */
+        Object prefetched;
+
+        /* time spent preparing it ahead of the worker */
+        long nanos;
+
+        Pending(ObjectRequest request) {
+            this.request = request;
+        }
+    }
+
+    private class Worker implements Runnable {
+        private final ObjectProcessor processor;
+
+        /* objects prepared ahead, or null if the worker takes its own */
+        private final BlockingQueue<Pending> ready;
+
+        private long heapCrossings;
+
+        Worker(ObjectProcessor processor, int prefetch) {
+            this.processor = processor;
+            ready = prefetch > 0 ? new ArrayBlockingQueue<Pending>(prefetch)
+                    : null;
+        }
+
+        public void run() {
+            while (true) {
+                Pending p;
+                try {
+                    p = ready != null ? ready.take() : new Pending(queue
+                            .take());
+                } catch (InterruptedException e) {
+                    return;
+                }
+                ObjectRequest request = p.request;
+                if (request == STOP) {
+                    return;
+                }
+
+                if (heap != null) {
+                    checkHeap();
+                }
+
+                // a prefetched object counts the time spent preparing it,
+                // but not the time it waited for the worker
+                long start = System.nanoTime() - p.nanos;
+                Deadline deadline = null;
+                if (watchdog != null) {
+                    deadline = new Deadline(request, processor);
+                }
+                if (!p.prepared) {
+                    prepare(p, false);
+                }
+                ObjectResult results[] = runObject(p, deadline);
+                if (request.getBuffer() != null) {
+                    buffers.give(request.getBuffer());
+                }
+                if (deadline != null && !deadline.finish()) {
+                    // already answered
+                    Log.info("Object " + request.getId() + " took "
+                            + (System.nanoTime() - start) / 1000000
+                            + "ms, its result was discarded");
+                    continue;
+                }
+                ObjectResult result = results.length == 1 ? results[0]
+                        : combine(request, results);
+                ObjectResult first = results[0];
+                first.setPhaseTime(Stats.RECEIVE, request.getReceiveNanos());
+                String names[] = request.getMacroNames();
+
+                // a stats report takes the same lock, so it counts exactly
+                // the results written before it
+                synchronized (out) {
+                    long emitStart = System.nanoTime();
+                    out.writeObject(result);
+                    long end = System.nanoTime();
+
+                    first.setPhaseTime(Stats.EMIT, end - emitStart);
+                    first.setPhaseTime(Stats.TOTAL, end - start);
+                    for (int i = 0; i < names.length; i++) {
+                        Stats.add(names[i], results[i].getPhaseTimes());
+                    }
+                }
+            }
+        }
+
+        private void checkHeap() {
+            long crossings = heap.getCrossings();
+            if (crossings == heapCrossings) {
+                return;
+            }
+            heapCrossings = crossings;
+            Log.warn("Heap past its watermark (" + heap.describe()
+                    + "), resetting ImageJ");
+            try {
+                processor.reset();
+            } catch (Throwable t) {
+                Log.error("Resetting ImageJ failed", t);
+            }
+            Stats.count("heap-resets");
+        }
+
+        /*
+         * Prepares objects for the worker on a thread of its own, until the
+         * queue is shut down.
+         */
+        void prefetchObjects() {
+            while (true) {
+                Pending p;
+                try {
+                    p = new Pending(queue.take());
+                    if (p.request != STOP) {
+                        prepare(p, true);
+                    }
+                    ready.put(p);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (p.request == STOP) {
+                    return;
+                }
+            }
+        }
+
+        /*
+         * Finds out which macros have to run on the object, and with
+         * prefetch set starts decoding it for them.
+         */
+        private void prepare(Pending p, boolean prefetch) {
+            long start = System.nanoTime();
+            ObjectRequest request = p.request;
+            String names[] = request.getMacroNames();
+            ObjectResult results[] = new ObjectResult[names.length];
+            byte keys[][] = new byte[names.length][];
+            boolean pending[] = new boolean[names.length];
+            int count = 0;
+            int first = -1;
+            int last = -1;
+            byte hash[] = cache != null ? cache.hashImage(request
+                    .getImage()) : null;
+            for (int i = 0; i < names.length; i++) {
+                if (cache != null) {
+                    keys[i] = cache.getKey(hash, names[i]);
+                    results[i] = keys[i] != null ? cache.get(request.getId(),
+                            keys[i]) : null;
+                    if (results[i] != null) {
+                        Log.debug("Result replayed from cache");
+                        continue;
+                    }
+                }
+                results[i] = new ObjectResult(request.getId());
+                pending[i] = true;
+                count++;
+                if (first < 0) {
+                    first = i;
+                }
+                last = i;
+            }
+            p.results = results;
+            p.keys = keys;
+            p.pending = pending;
+            p.first = first;
+            p.last = last;
+            p.prepared = true;
+            if (first < 0) {
+                return;
+            }
+
+            String pendingNames[] = new String[count];
+            for (int i = 0, j = 0; i < names.length; i++) {
+                if (pending[i]) {
+                    pendingNames[j++] = names[i];
+                }
+            }
+            p.pendingNames = pendingNames;
+
+            if (prefetch) {
+                IJLoader.beginObject(results[first]);
+                try {
+                    p.prefetched = processor.prefetch(request.getImage(),
+                            pendingNames);
+                } catch (Throwable t) {
+                    // the worker decodes it from scratch
+                    Log.error("Prefetching object " + request.getId()
+                            + " failed", t);
+                } finally {
+                    IJLoader.endObject();
+                }
+                p.nanos = System.nanoTime() - start;
+            }
+        }
+
+        /* returns a result for each of the object's macros */
+        private ObjectResult[] runObject(Pending p, Deadline deadline) {
+            ObjectRequest request = p.request;
+            String names[] = request.getMacroNames();
+            ObjectResult results[] = p.results;
+            byte keys[][] = p.keys;
+            boolean pending[] = p.pending;
+            int first = p.first;
+            int last = p.last;
+            if (first < 0) {
+                return results;
+            }
+
+            boolean opened = false;
+            boolean failed = false;
+            IJLoader.beginObject(results[first]);
+            try {
+                opened = processor.open(request.getImage(), p.pendingNames,
+                        p.prefetched);
+            } catch (Throwable t) {
+                Log.error("Object " + request.getId() + " failed", t);
+                failed = true;
+            } finally {
+                IJLoader.endObject();
+            }
+
+            try {
+                for (int i = first; i <= last; i++) {
+                    if (!pending[i]) {
+                        continue;
+                    }
+                    ObjectResult result = results[i];
+                    if (!opened && !failed) {
+                        result.addAttribute(REFUSED, "1");
+                        result.setResult("0.0");
+                        continue;
+                    }
+                    boolean macroFailed = failed;
+                    if (opened && (deadline == null || !deadline.isExpired())) {
+                        macroFailed = !runMacro(request, names[i], i == last,
+                                result);
+                    }
+                    finishResult(result, keys[i], macroFailed, deadline);
+                }
+            } finally {
+                processor.close();
+            }
+            return results;
+        }
+
+        /* returns false if the macro failed */
+        private boolean runMacro(ObjectRequest request, String macroName,
+                boolean last, ObjectResult result) {
+            IJLoader.beginObject(result);
+            try {
+                processor.run(macroName, last);
+                return true;
+            } catch (Throwable t) {
+                Log.error("Object " + request.getId() + " failed in "
+                        + macroName, t);
+                return false;
+            } finally {
+                IJLoader.endObject();
+            }
+        }
+
+        private void finishResult(ObjectResult result, byte key[],
+                boolean failed, Deadline deadline) {
+            boolean expired = deadline != null && deadline.isExpired();
+            if (!result.hasResult()) {
+                if (!expired) {
+                    Log.warn("No output received from filter");
+                }
+                result.setResult("0.0");
+            } else if (key != null && !failed && !expired) {
+                // only what the macro reported itself is worth replaying
+                cache.put(key, result);
+            }
+        }
+    }
+
+    /*
+     * Each macro's attributes get a dot and the macro name appended, as its
+     * score does, so that macros setting the same attribute do not
+     * overwrite each other; the object's score is the lowest of theirs.
+     */
+    private static ObjectResult combine(ObjectRequest request,
+            ObjectResult results[]) {
+        String names[] = request.getMacroNames();
+        ObjectResult combined = new ObjectResult(request.getId());
+        double score = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < results.length; i++) {
+            combined.addAttributes(results[i], "." + names[i]);
+            combined.addAttribute(SCORE + names[i], results[i].getResult());
+            score = Math.min(score, results[i].getScore());
+        }
+        combined.setResult(Double.toString(score));
+        return combined;
+    }
+
+    private static String describeMacros(ObjectRequest request) {
+        String names[] = request.getMacroNames();
+        StringBuilder sb = new StringBuilder(names[0]);
+        for (int i = 1; i < names.length; i++) {
+            sb.append(", ").append(names[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The time one object may take. If it runs out, the watchdog answers for
+     * the object and aborts it; the worker then calls {@link #finish} as
+     * usual, and learns the result is no longer wanted.
+     */
+    private class Deadline implements Runnable {
+        private final ObjectRequest request;
+
+        private final ObjectProcessor processor;
+
+        private final Thread thread = Thread.currentThread();
+
+        private final ScheduledFuture<?> alarm;
+
+        /* guarded by this */
+        private boolean finished;
+
+        private boolean expired;
+
+        Deadline(ObjectRequest request, ObjectProcessor processor) {
+            this.request = request;
+            this.processor = processor;
+            alarm = watchdog.schedule(this, timeoutMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+
+        public void run() {
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                expired = true;
+            }
+
+            ObjectResult result = new ObjectResult(request.getId());
+            result.addAttribute(TIMED_OUT, "1");
+            result.setResult(timeoutScore);
+            synchronized (out) {
+                out.writeObject(result);
+                Stats.count("timeouts");
+            }
+            Log.warn("Object " + request.getId() + " ran past "
+                    + timeoutMillis + "ms with " + describeMacros(request)
+                    + ", aborting it");
+
+            // the interpreter waits up to 2s for the macro to stop; other
+            // deadlines wait behind it, but their objects are answered then
+            synchronized (this) {
+                if (!finished) {
+                    processor.abort();
+                    thread.interrupt();
+                }
+            }
+        }
+
+        /**
+         * Called by the worker when the object returns. Returns false if
+         * it was too late.
+         */
+        boolean finish() {
+            alarm.cancel(false);
+            synchronized (this) {
+                finished = true;
+                // an interrupt meant for this object must not hit the next
+                Thread.interrupted();
+                return !expired;
+            }
+        }
+
+        synchronized boolean isExpired() {
+            return expired;
+        }
+    }
+
+    private static String getTimeoutScore() {
+        String score = System.getProperty("ijloader.timeout.score", "0.0");
+        try {
+            Double.parseDouble(score);
+            return score;
+        } catch (NumberFormatException e) {
+            Log.warn("Invalid ijloader.timeout.score " + score + ", using 0");
+            return "0.0";
+        }
+    }
+
+    private static ScheduledExecutorService newWatchdog() {
+        return new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "IJLoader watchdog");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    private static ObjectProcessor newIsolatedProcessor() throws IOException {
+        ClassLoader loader = new IsolatingClassLoader(getClassPath(),
+                WorkerPool.class.getClassLoader());
+        try {
+            return (ObjectProcessor) loader.loadClass("ijloader.IJProcessor")
+                    .getDeclaredConstructor().newInstance();
+        } catch (Exception e) {
+            IOException ioe = new IOException("Cannot create worker: " + e);
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+
+    private static URL[] getClassPath() throws IOException {
+        StringTokenizer st = new StringTokenizer(System
+                .getProperty("java.class.path"), File.pathSeparator);
+        URL urls[] = new URL[st.countTokens()];
+        for (int i = 0; i < urls.length; i++) {
+            urls[i] = new File(st.nextToken()).toURI().toURL();
+        }
+        return urls;
+    }
+
+    /**
+     * Loads ImageJ and IJLoader's own classes itself rather than asking its
+     * parent first, except for the shared ones. Because the copies live in a
+     * different runtime package, everything they use across the boundary has
+     * to be public.
+     */
+    private static class IsolatingClassLoader extends URLClassLoader {
+        IsolatingClassLoader(URL urls[], ClassLoader parent) {
+            super(urls, parent);
+        }
+
+        protected synchronized Class<?> loadClass(String name,
+                boolean resolve) throws ClassNotFoundException {
+            if (!isIsolated(name)) {
+                return super.loadClass(name, resolve);
+            }
+
+            Class<?> c = findLoadedClass(name);
+            if (c == null) {
+                try {
+                    c = findClass(name);
+                } catch (ClassNotFoundException e) {
+                    return super.loadClass(name, resolve);
+                }
+            }
+            if (resolve) {
+                resolveClass(c);
+            }
+            return c;
+        }
+
+        private static boolean isIsolated(String name) {
+            if (name.startsWith("ij.")) {
+                return true;
+            }
+            if (!name.startsWith("ijloader.")) {
+                return false;
+            }
+
+            int nested = name.indexOf('$');
+            String outer = nested < 0 ? name : name.substring(0, nested);
+            for (String s : SHARED) {
+                if (s.equals(outer)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
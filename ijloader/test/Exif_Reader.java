@@ -0,0 +1,57 @@
+/*
+ * ImageJFind: A Diamond application for interoperating with ImageJ
+ *
+ * Copyright (c) 2006-2008 Carnegie Mellon University. All rights reserved.
+ * Additional copyrights may be listed below.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution in the file named LICENSE.
+ *
+ * Technical and financial contributors are listed in the file named
+ * CREDITS.
+ */
+
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Stands in for the Exif_Reader plugin, which ImageJ asks for the EXIF
+ * metadata of JPEGs it opens and turns them by, so that the tests see
+ * rotated JPEGs opened the way a server with the plugin installed would.
+ * It only reports the orientation, which it finds the way the real one
+ * would describe it.
+ */
+public class Exif_Reader {
+
+    private static final String ROTATIONS[] = { null, null, null,
+            "Rotate 180", null, null, "Rotate 90 CW", null, "Rotate 270 CW" };
+
+    public static String getMetadata(String path) {
+        byte b[];
+        try {
+            FileInputStream in = new FileInputStream(path);
+            try {
+                b = new byte[in.available()];
+                in.read(b);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+
+        // the orientation entry is the only thing the tests write
+        for (int i = 0; i + 10 <= b.length; i++) {
+            if (b[i] == 0x01 && b[i + 1] == 0x12 && b[i + 2] == 0
+                    && b[i + 3] == 3) {
+                int orientation = b[i + 9] & 0xFF;
+                if (orientation < ROTATIONS.length
+                        && ROTATIONS[orientation] != null) {
+                    return "Orientation: " + ROTATIONS[orientation] + "\n";
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * ImageJFind: A Diamond application for interoperating with ImageJ
+ *
+ * Copyright (c) 2006-2008 Carnegie Mellon University. All rights reserved.
+ * Additional copyrights may be listed below.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution in the file named LICENSE.
+ *
+ * Technical and financial contributors are listed in the file named
+ * CREDITS.
+ */
+
+package ijloader;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that IJLoader, started with the options fil_imagej_exec gives the
+ * JVM with a class data sharing archive, greets the filter on its first
+ * line of stdout even when the JVM cannot use the archive. Run with the
+ * paths of ij.jar and ijloader.jar; it starts IJLoader once with an
+ * archive of garbage, and once with an archive made for copies of the
+ * jars that have since changed, if this JVM can make one. It exits with
+ * status 1 and lists what is wrong if anything comes before the greeting.
+ */
+public class CdsFallbackTest {
+
+    /* as in fil_imagej_exec.c, after -XX:SharedArchiveFile */
+    private static final String CDS_OPTIONS[] = { "-Xshare:auto",
+            "-Xlog:disable", "-Xlog:all=warning:stderr" };
+
+    public static void main(String args[]) throws Exception {
+        if (args.length != 2) {
+            fail("Usage: CdsFallbackTest ij.jar ijloader.jar");
+        }
+        List<String> failures = new ArrayList<String>();
+        File dir = createTempDir();
+        try {
+            File ij = copy(new File(args[0]), dir);
+            File ijloader = copy(new File(args[1]), dir);
+            String classPath = ij.getPath() + File.pathSeparator
+                    + ijloader.getPath();
+
+            File garbage = new File(dir, "garbage.jsa");
+            byte b[] = new byte[65536];
+            new Random(1).nextBytes(b);
+            write(garbage, b);
+            check("garbage archive", garbage, classPath, failures);
+
+            // the JVM checks the jars it archived against their mtimes
+            File stale = new File(dir, "stale.jsa");
+            run(classPath, "-XX:ArchiveClassesAtExit=" + stale.getPath());
+            if (stale.exists()) {
+                ijloader.setLastModified(ijloader.lastModified() - 60000);
+                check("stale archive", stale, classPath, failures);
+            } else {
+                System.out.println("This JVM cannot make an archive; "
+                        + "skipping the stale one");
+            }
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+
+        if (!failures.isEmpty()) {
+            for (String s : failures) {
+                System.out.println("FAIL: " + s);
+            }
+            fail(failures.size() + " failure(s)");
+        }
+        System.out.println("OK");
+        System.exit(0);
+    }
+
+    private static void check(String what, File archive, String classPath,
+            List<String> failures) throws IOException, InterruptedException {
+        List<String> options = new ArrayList<String>();
+        options.add("-XX:+IgnoreUnrecognizedVMOptions");
+        options.add("-XX:SharedArchiveFile=" + archive.getPath());
+        options.addAll(Arrays.asList(CDS_OPTIONS));
+        String line = run(classPath, options.toArray(new String[0]));
+        if (line == null || !line.startsWith("HELLO ")) {
+            failures.add(what + ": IJLoader's first line was " + line);
+        }
+    }
+
+    /* says HELLO to IJLoader, hangs up, and returns the first line back */
+    private static String run(String classPath, String... options)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"),
+                "bin"), "java").getPath());
+        command.add("-Djava.awt.headless=true");
+        command.addAll(Arrays.asList(options));
+        command.add("-cp");
+        command.add(classPath);
+        command.add("ijloader.IJLoader");
+        Process p = new ProcessBuilder(command).start();
+        drain(p.getErrorStream());
+
+        DataOutputStream out = new DataOutputStream(p.getOutputStream());
+        out.writeInt(IJLoader.HELLO);
+        out.writeInt(IJLoader.PROTOCOL_VERSION);
+        out.writeInt(0);
+        out.close();
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                p.getInputStream()));
+        String line = in.readLine();
+        while (in.readLine() != null) {
+        }
+        p.waitFor();
+        return line;
+    }
+
+    /* so that the JVM's warnings cannot fill the pipe */
+    private static void drain(final InputStream in) {
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                byte b[] = new byte[4096];
+                try {
+                    while (in.read(b) >= 0) {
+                    }
+                } catch (IOException e) {
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static File createTempDir() throws IOException {
+        File dir = File.createTempFile("cds", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Could not create " + dir);
+        }
+        return dir;
+    }
+
+    private static File copy(File from, File dir) throws IOException {
+        File to = new File(dir, from.getName());
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                byte b[] = new byte[65536];
+                int n;
+                while ((n = in.read(b)) >= 0) {
+                    out.write(b, 0, n);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        return to;
+    }
+
+    private static void write(File f, byte b[]) throws IOException {
+        OutputStream out = new FileOutputStream(f);
+        try {
+            out.write(b);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void fail(String message) {
+        System.out.println(message);
+        System.exit(1);
+    }
+}
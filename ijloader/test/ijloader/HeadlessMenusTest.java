@@ -0,0 +1,115 @@
+/*
+ * ImageJFind: A Diamond application for interoperating with ImageJ
+ *
+ * Copyright (c) 2006-2008 Carnegie Mellon University. All rights reserved.
+ * Additional copyrights may be listed below.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution in the file named LICENSE.
+ *
+ * Technical and financial contributors are listed in the file named
+ * CREDITS.
+ */
+
+package ijloader;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Menus;
+import ij.measure.ResultsTable;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks the command table {@link HeadlessMenus} installs against the
+ * ImageJ on the class path: run with java.awt.headless=true, it exits with
+ * status 1 and lists what is wrong if a command macros rely on is missing,
+ * if a command names an ImageJ class that does not exist, or if dialog-free
+ * commands do not run.
+ */
+public class HeadlessMenusTest {
+
+    /* from IJ_Props.txt and from the list in HeadlessMenus */
+    private static final String KNOWN[] = { "8-bit", "16-bit", "32-bit",
+            "RGB Color", "Invert", "Smooth", "Measure",
+            "Set Measurements...", "Clear Results", "Summarize",
+            "Analyze Particles...", "Duplicate...", "Crop", "Open...",
+            "Close", "Close All", "Gaussian Blur...", "Median...",
+            "Convert to Mask", "Make Binary", "Add Noise", "Find Edges",
+            "Find Maxima...", "Subtract Background...", "Scale...",
+            "Image Calculator...", "Properties..." };
+
+    public static void main(String args[]) {
+        List<String> failures = new ArrayList<String>();
+
+        HeadlessMenus.install();
+        Hashtable<?, ?> commands = Menus.getCommands();
+        if (commands == null) {
+            fail("No command table installed");
+        }
+
+        for (String command : KNOWN) {
+            if (!commands.containsKey(command)) {
+                failures.add("missing command " + command);
+            }
+        }
+
+        for (Map.Entry<?, ?> e : commands.entrySet()) {
+            String value = (String) e.getValue();
+            int paren = value.indexOf('(');
+            String className = paren < 0 ? value : value.substring(0, paren);
+            if (className.startsWith("ij.") && !exists(className.trim())) {
+                failures.add("command " + e.getKey() + " names missing class "
+                        + className);
+            }
+        }
+
+        ImagePlus imp = IJ.createImage("test", "RGB ramp", 64, 32, 1);
+        try {
+            IJ.run(imp, "8-bit", "");
+            IJ.run(imp, "Measure", "");
+        } catch (RuntimeException e) {
+            failures.add("running 8-bit and Measure: " + e);
+        }
+        if (imp.getBitDepth() != 8) {
+            failures.add("8-bit did not convert the image");
+        }
+        if (ResultsTable.getResultsTable().size() != 1) {
+            failures.add("Measure did not add a row");
+        }
+
+        if (!HeadlessMenus.BUILTIN_VERSION.equals(IJ.getVersion())) {
+            System.out.println("Note: built-in commands were listed for "
+                    + "ImageJ " + HeadlessMenus.BUILTIN_VERSION
+                    + ", testing " + IJ.getVersion());
+        }
+        if (!failures.isEmpty()) {
+            for (String s : failures) {
+                System.out.println("FAIL: " + s);
+            }
+            fail(failures.size() + " failure(s)");
+        }
+        System.out.println("OK: " + commands.size() + " commands");
+        System.exit(0);
+    }
+
+    private static boolean exists(String className) {
+        try {
+            Class.forName(className, false, IJ.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        } catch (LinkageError e) {
+            return true;
+        }
+    }
+
+    private static void fail(String message) {
+        System.out.println(message);
+        System.exit(1);
+    }
+}
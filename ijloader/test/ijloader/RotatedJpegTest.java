@@ -0,0 +1,172 @@
+/*
+ * ImageJFind: A Diamond application for interoperating with ImageJ
+ *
+ * Copyright (c) 2006-2008 Carnegie Mellon University. All rights reserved.
+ * Additional copyrights may be listed below.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution in the file named LICENSE.
+ *
+ * Technical and financial contributors are listed in the file named
+ * CREDITS.
+ */
+
+package ijloader;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.macro.Interpreter;
+import ij.process.ImageProcessor;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Checks that a macro asking for a region of a JPEG with an EXIF
+ * orientation gets that region of the pixels as stored, or, with
+ * ijloader.jpeg.exifRotate set, of the image as ImageJ turns it. Run with
+ * java.awt.headless=true and the stand-in Exif_Reader on the class path,
+ * which ImageJ uses on any file named .jpg either way; it exits with
+ * status 1 and lists what is wrong if the decoded region differs from the
+ * same region of the image IJ.open makes of a file named the way IJLoader
+ * names it.
+ */
+public class RotatedJpegTest {
+
+    private static final int WIDTH = 60;
+
+    private static final int HEIGHT = 40;
+
+    /* inside the image either way up, so reading it unturned goes unseen */
+    private static final String DIRECTIVE = "// @ijloader region=10,5,20,30 "
+            + "subsample=2\n";
+
+    private static final int ORIENTATIONS[] = { 3, 6, 8 };
+
+    public static void main(String args[]) throws IOException {
+        List<String> failures = new ArrayList<String>();
+        HeadlessMenus.install();
+        Interpreter.batchMode = true;
+
+        boolean exifRotate = Boolean.getBoolean("ijloader.jpeg.exifRotate");
+        DecodeOptions options = DecodeOptions.parse(DIRECTIVE, "test");
+        for (int orientation : ORIENTATIONS) {
+            byte jpeg[] = makeJpeg(orientation);
+            if (openFile(jpeg, ".jpg").getWidth() == WIDTH
+                    && orientation != 3) {
+                fail("ImageJ did not turn orientation " + orientation
+                        + "; is Exif_Reader on the class path?");
+            }
+            ImagePlus full = openFile(jpeg, exifRotate ? ".jpg" : ".img");
+
+            ImagePlus imp = ImageDecoder.prepare(ByteBuffer.wrap(jpeg),
+                    options).open();
+            String what = "orientation " + orientation + ": ";
+            if (imp == null) {
+                failures.add(what + "not decoded");
+                continue;
+            }
+            if (imp.getWidth() != 10 || imp.getHeight() != 15) {
+                failures.add(what + "decoded to " + imp.getWidth() + "x"
+                        + imp.getHeight() + ", not 10x15");
+                continue;
+            }
+            if (imp.getCalibration().pixelWidth != 2) {
+                failures.add(what + "not calibrated");
+            }
+            ImageProcessor expected = full.getProcessor();
+            ImageProcessor actual = imp.getProcessor();
+            int wrong = 0;
+            for (int y = 0; y < 15; y++) {
+                for (int x = 0; x < 10; x++) {
+                    if (actual.getPixel(x, y) != expected.getPixel(10 + 2 * x,
+                            5 + 2 * y)) {
+                        wrong++;
+                    }
+                }
+            }
+            if (wrong > 0) {
+                failures.add(what + wrong + " pixel(s) not from the region "
+                        + "of the " + (exifRotate ? "turned" : "stored")
+                        + " image");
+            }
+        }
+
+        if (!failures.isEmpty()) {
+            for (String s : failures) {
+                System.out.println("FAIL: " + s);
+            }
+            fail(failures.size() + " failure(s)");
+        }
+        System.out.println("OK: " + ORIENTATIONS.length + " orientations "
+                + (exifRotate ? "turned" : "as stored"));
+        System.exit(0);
+    }
+
+    /* a gradient, with an APP1 segment holding only the orientation */
+    private static byte[] makeJpeg(int orientation) throws IOException {
+        BufferedImage bi = new BufferedImage(WIDTH, HEIGHT,
+                BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                bi.setRGB(x, y, (x * 4) << 16 | (y * 6) << 8 | 128);
+            }
+        }
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        ImageIO.write(bi, "jpg", jpeg);
+        byte b[] = jpeg.toByteArray();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream d = new DataOutputStream(out);
+        d.write(b, 0, 2);
+        d.writeShort(0xFFE1);
+        d.writeShort(2 + 6 + 8 + 2 + 12 + 4);
+        d.writeBytes("Exif");
+        d.writeShort(0);
+        // big-endian TIFF header and an IFD of one SHORT entry
+        d.writeBytes("MM");
+        d.writeShort(42);
+        d.writeInt(8);
+        d.writeShort(1);
+        d.writeShort(0x0112);
+        d.writeShort(3);
+        d.writeInt(1);
+        d.writeShort(orientation);
+        d.writeShort(0);
+        d.writeInt(0);
+        d.write(b, 2, b.length - 2);
+        d.close();
+        return out.toByteArray();
+    }
+
+    private static ImagePlus openFile(byte jpeg[], String suffix)
+            throws IOException {
+        File f = File.createTempFile("rotated", suffix);
+        try {
+            FileOutputStream out = new FileOutputStream(f);
+            try {
+                out.write(jpeg);
+            } finally {
+                out.close();
+            }
+            return IJ.openImage(f.getPath());
+        } finally {
+            f.delete();
+        }
+    }
+
+    private static void fail(String message) {
+        System.out.println(message);
+        System.exit(1);
+    }
+}
@@ -0,0 +1,380 @@
+/*
+ * ImageJFind: A Diamond application for interoperating with ImageJ
+ *
+ * Copyright (c) 2006-2008 Carnegie Mellon University. All rights reserved.
+ * Additional copyrights may be listed below.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution in the file named LICENSE.
+ *
+ * Technical and financial contributors are listed in the file named
+ * CREDITS.
+ */
+
+package ijloader.replay;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Talks to an IJLoader process the way fil_imagej_exec does: protocol
+ * version 2, with binary result frames or the text results, and the stats
+ * request, or the way other senders do with the batch message. The numbers
+ * here have to match IJLoader.java and the filter.
+ * <p>
+ * One thread may send objects while another reads results.
+ */
+class Connection {
+
+    static final int HELLO = 0x80494A4C;
+
+    static final int PROTOCOL_VERSION = 2;
+
+    static final int MSG_OBJECT = 1;
+
+    static final int MSG_BATCH = 2;
+
+    static final int MSG_STATS = 3;
+
+    static final int MSG_MULTI_OBJECT = 5;
+
+    static final int FEATURE_BINARY_RESULTS = 1 << 0;
+
+    static final int FEATURE_BATCH = 1 << 1;
+
+    static final int FEATURE_STATS = 1 << 2;
+
+    static final int FEATURE_MULTI_MACRO = 1 << 4;
+
+    static final int FRAME_RESULT = 1;
+
+    static final int FRAME_STATS = 2;
+
+    static final int ATTR_STRING = 1;
+
+    /**
+     * What came back for one object, or the stats report.
+     */
+    static class Result {
+        final int id;
+
+        final List<String> names = new ArrayList<String>();
+
+        final List<String> values = new ArrayList<String>();
+
+        double score;
+
+        /* non-null for the reply to a stats request */
+        String stats;
+
+        Result(int id) {
+            this.id = id;
+        }
+
+        /* attributes in the order they came, one name=value per entry */
+        String describeAttributes() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < names.size(); i++) {
+                sb.append('\t').append(escape(names.get(i))).append('=')
+                        .append(escape(values.get(i)));
+            }
+            return sb.toString();
+        }
+    }
+
+    private final Process process;
+
+    private final DataOutputStream out;
+
+    private final DataInputStream in;
+
+    private final boolean binary;
+
+    private final int features;
+
+    /* the largest batch IJLoader takes, from its greeting */
+    private final int batchMaxObjects;
+
+    private final long batchMaxBytes;
+
+    /**
+     * Starts IJLoader in dir, with the given JVM arguments, and negotiates
+     * the features wanted. Its stderr is copied to ours.
+     */
+    Connection(File dir, List<String> jvmArgs, int wanted) throws IOException {
+        List<String> command = new ArrayList<String>();
+        command.add("java");
+        command.add("-Djava.awt.headless=true");
+        command.addAll(jvmArgs);
+        command.add("-cp");
+        command.add("ij.jar:ijloader.jar:.");
+        command.add("ijloader.IJLoader");
+        process = new ProcessBuilder(command).directory(dir).start();
+        copy(process.getErrorStream(), System.err);
+
+        out = new DataOutputStream(new BufferedOutputStream(process
+                .getOutputStream(), 1 << 16));
+        in = new DataInputStream(new BufferedInputStream(process
+                .getInputStream(), 1 << 16));
+
+        out.writeInt(HELLO);
+        out.writeInt(PROTOCOL_VERSION);
+        out.writeInt(wanted);
+        out.flush();
+
+        // always a text line: HELLO version features maxObjects maxBytes
+        String greeting = readLine();
+        String words[] = greeting != null ? greeting.split(" ") : new String[0];
+        if (words.length < 5 || !words[0].equals("HELLO")
+                || Integer.parseInt(words[1]) != PROTOCOL_VERSION) {
+            throw new IOException("Bad greeting from IJLoader: " + greeting);
+        }
+        features = Integer.parseInt(words[2]);
+        batchMaxObjects = Integer.parseInt(words[3]);
+        batchMaxBytes = Long.parseLong(words[4]);
+        binary = (features & FEATURE_BINARY_RESULTS) != 0;
+    }
+
+    int getFeatures() {
+        return features;
+    }
+
+    int getBatchMaxObjects() {
+        return batchMaxObjects;
+    }
+
+    long getBatchMaxBytes() {
+        return batchMaxBytes;
+    }
+
+    /**
+     * Sends one object with one or more macro names. Not flushed.
+     */
+    void sendObject(int id, byte image[], String macroNames[])
+            throws IOException {
+        boolean multi = macroNames.length > 1;
+        out.writeInt(multi ? MSG_MULTI_OBJECT : MSG_OBJECT);
+        out.writeInt(id);
+        out.writeInt(image.length);
+        out.write(image);
+        if (multi) {
+            out.writeInt(macroNames.length);
+        }
+        for (String name : macroNames) {
+            byte b[] = name.getBytes("UTF-8");
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+
+    /**
+     * Sends objects with consecutive ids from firstId in one batch, all for
+     * one macro. Not flushed.
+     */
+    void sendBatch(int firstId, byte images[][], String macroName)
+            throws IOException {
+        out.writeInt(MSG_BATCH);
+        byte b[] = macroName.getBytes("UTF-8");
+        out.writeInt(b.length);
+        out.write(b);
+        out.writeInt(images.length);
+        for (int i = 0; i < images.length; i++) {
+            out.writeInt(firstId + i);
+            out.writeInt(images[i].length);
+            out.write(images[i]);
+        }
+    }
+
+    void sendStatsRequest(int id) throws IOException {
+        out.writeInt(MSG_STATS);
+        out.writeInt(id);
+    }
+
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Reads the next result or stats report. Returns null at the end of
+     * IJLoader's output.
+     */
+    Result read() throws IOException {
+        return binary ? readFrame() : readText();
+    }
+
+    /**
+     * Closes IJLoader's input, which makes it finish what it has and exit,
+     * and returns its exit status.
+     */
+    int close() throws IOException, InterruptedException {
+        out.close();
+        // drain anything left so it cannot block writing
+        while (in.read() >= 0) {
+        }
+        return process.waitFor();
+    }
+
+    void kill() {
+        process.destroy();
+    }
+
+    /*
+     * u32 length, u32 type, u32 request id, then for results an attribute
+     * count, the attributes and an f64 score, and for stats the report
+     */
+    private Result readFrame() throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        byte frame[] = new byte[length];
+        in.readFully(frame);
+        DataInputStream f = new DataInputStream(new ByteArrayInputStream(
+                frame));
+
+        int type = f.readInt();
+        Result r = new Result(f.readInt());
+        if (type == FRAME_STATS) {
+            r.stats = new String(frame, 8, length - 8, "UTF-8");
+            return r;
+        }
+        if (type != FRAME_RESULT) {
+            throw new IOException("Unknown frame type " + type);
+        }
+        int count = f.readInt();
+        for (int i = 0; i < count; i++) {
+            int attrType = f.readUnsignedByte();
+            r.names.add(new String(readField(f), "UTF-8"));
+            byte value[] = readField(f);
+            r.values.add(attrType == ATTR_STRING ? new String(value, "UTF-8")
+                    : toHex(value));
+        }
+        r.score = f.readDouble();
+        return r;
+    }
+
+    private static byte[] readField(DataInputStream f) throws IOException {
+        byte b[] = new byte[f.readInt()];
+        f.readFully(b);
+        return b;
+    }
+
+    /*
+     * BEGIN id, then ATTR, K, length, name, V, length, value for each
+     * attribute, then RESULT, length, score; or STATS id, length, report
+     */
+    private Result readText() throws IOException {
+        String line = readLine();
+        if (line == null) {
+            return null;
+        }
+        if (line.startsWith("STATS ")) {
+            Result r = new Result(Integer.parseInt(line.substring(6)));
+            r.stats = new String(readTextField(), "UTF-8");
+            return r;
+        }
+        if (!line.startsWith("BEGIN ")) {
+            throw new IOException("Expected BEGIN, got " + line);
+        }
+        Result r = new Result(Integer.parseInt(line.substring(6)));
+        while (true) {
+            line = readLine();
+            if ("ATTR".equals(line)) {
+                expect("K");
+                r.names.add(new String(readTextField(), "UTF-8"));
+                expect("V");
+                r.values.add(new String(readTextField(), "UTF-8"));
+            } else if ("RESULT".equals(line)) {
+                r.score = Double.parseDouble(new String(readTextField(),
+                        "UTF-8"));
+                return r;
+            } else {
+                throw new IOException("Expected ATTR or RESULT, got " + line);
+            }
+        }
+    }
+
+    /* a length line, that many bytes and a newline */
+    private byte[] readTextField() throws IOException {
+        String line = readLine();
+        if (line == null) {
+            throw new EOFException();
+        }
+        byte b[] = new byte[Integer.parseInt(line.trim())];
+        in.readFully(b);
+        readLine();
+        return b;
+    }
+
+    private void expect(String tag) throws IOException {
+        String line = readLine();
+        if (!tag.equals(line)) {
+            throw new IOException("Expected " + tag + ", got " + line);
+        }
+    }
+
+    /* a line of ASCII, without the newline; null at the end */
+    private String readLine() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                return sb.length() > 0 ? sb.toString() : null;
+            }
+            sb.append((char) c);
+        }
+        return sb.toString();
+    }
+
+    static String escape(String s) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '\t':
+                sb.append("\\t");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            case '\\':
+                sb.append("\\\\");
+                break;
+            default:
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String toHex(byte b[]) {
+        StringBuilder sb = new StringBuilder("0x");
+        for (byte x : b) {
+            sb.append(Character.forDigit((x >> 4) & 0xF, 16)).append(
+                    Character.forDigit(x & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private static void copy(final InputStream from, final OutputStream to) {
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                byte buf[] = new byte[8192];
+                try {
+                    int n;
+                    while ((n = from.read(buf)) >= 0) {
+                        to.write(buf, 0, n);
+                    }
+                } catch (IOException e) {
+                    // IJLoader went away
+                }
+            }
+        }, "IJLoader stderr");
+        t.setDaemon(true);
+        t.start();
+    }
+}
@@ -0,0 +1,739 @@
+/*
+ * ImageJFind: A Diamond application for interoperating with ImageJ
+ *
+ * Copyright (c) 2006-2008 Carnegie Mellon University. All rights reserved.
+ * Additional copyrights may be listed below.
+ *
+ * This program and the accompanying materials are made available under
+ * the terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution in the file named LICENSE.
+ *
+ * Technical and financial contributors are listed in the file named
+ * CREDITS.
+ */
+
+package ijloader.replay;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Runs IJLoader on a directory of images the way a Diamond search would,
+ * without Diamond, to measure it and to check it still gives the same
+ * results.
+ * <p>
+ * ImageJ is unpacked into a scratch directory, with IJLoader, the plugins
+ * and the macros installed as fil_imagej_exec installs them. IJLoader is
+ * started there and sent every image in turn, over and over until the
+ * requested number of objects, keeping a given number in flight (one, like
+ * the filter, by default). Every result must come back exactly once, and
+ * each image must get the same score and attributes every time it is sent;
+ * they can also be recorded to a file, and checked against one recorded
+ * earlier. Objects can also be sent in batches, the way other senders do;
+ * those over the limits IJLoader advertises must come back refused. At the
+ * end come the throughput, the latency percentiles of each object from
+ * sending it to its result, and IJLoader's own stats report, with its phase
+ * timings, garbage collections and heap.
+ * <p>
+ * Exits with status 1 if any check failed.
+ */
+public class Replay {
+
+    private static final String USAGE = "Usage: java -jar replay.jar -imagej ZIP|DIR [options]\n"
+            + "  -imagej ZIP|DIR  ImageJ zip (ij-latest.zip) or directory\n"
+            + "  -ijloader JAR    IJLoader to run (default ijloader.jar)\n"
+            + "  -plugin JAR      install in plugins; may be repeated\n"
+            + "  -macro FILE      install in macros and run on every object; may be\n"
+            + "                   repeated to run several (default: measure with\n"
+            + "                   Diamond Filter)\n"
+            + "  -images DIR      images to send (default: synthetic ones)\n"
+            + "  -synthetic N     number of synthetic images (default 8)\n"
+            + "  -size WxH        size of synthetic images (default 1024x768)\n"
+            + "  -objects N       objects to send, cycling through the images\n"
+            + "                   (default 10 times the number of images)\n"
+            + "  -warmup N        objects left out of the numbers (default: one\n"
+            + "                   pass over the images)\n"
+            + "  -inflight N      objects sent ahead of their results (default 1)\n"
+            + "  -batch N         send N objects per batch message, for one macro;\n"
+            + "                   objects over IJLoader's limits must be refused\n"
+            + "  -text            ask for text results instead of binary frames\n"
+            + "  -record FILE     write each image's score and attributes to FILE\n"
+            + "  -expect FILE     check them against FILE from -record\n"
+            + "  -J<arg>          pass <arg> to IJLoader's JVM, as in\n"
+            + "                   -J-Dijloader.workers=4\n";
+
+    private static final String DEFAULT_MACRO = "replay.ijm";
+
+    private static final String REFUSED = "ijloader.refused";
+
+    /* the one train-cds.py uses: headless ImageJ cannot show dialogs */
+    private static final String DEFAULT_MACRO_TEXT = "run(\"8-bit\");\n"
+            + "run(\"Measure\");\n"
+            + "run(\"Diamond Filter\", \"expr=[COUNT('Mean') > 0 ? AVERAGE('Mean') + STDDEV('Mean') : MEDIAN('Mean')]\");\n";
+
+    /* failures printed before only counting them */
+    private static final int MAX_REPORTED = 20;
+
+    private static class Image {
+        final String name;
+
+        final byte data[];
+
+        Image(String name, byte data[]) {
+            this.name = name;
+            this.data = data;
+        }
+    }
+
+    private File imagej;
+
+    private File ijloader = new File("ijloader.jar");
+
+    private final List<File> plugins = new ArrayList<File>();
+
+    private final List<File> macros = new ArrayList<File>();
+
+    private File imageDir;
+
+    private int synthetic = 8;
+
+    private int width = 1024;
+
+    private int height = 768;
+
+    private int objects = -1;
+
+    private int warmup = -1;
+
+    private int inflight = 1;
+
+    /* 0 to send each object in a message of its own */
+    private int batch;
+
+    private boolean text;
+
+    private File recordFile;
+
+    private File expectFile;
+
+    private final List<String> jvmArgs = new ArrayList<String>();
+
+    private int failures;
+
+    public static void main(String args[]) {
+        Replay replay = new Replay();
+        try {
+            replay.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.print(e.getMessage() + "\n" + USAGE);
+            System.exit(2);
+        }
+
+        try {
+            replay.run();
+        } catch (Exception e) {
+            System.err.println("Replay failed: " + e);
+            System.exit(1);
+        }
+        if (replay.failures > 0) {
+            System.err.println(replay.failures + " check(s) failed");
+            System.exit(1);
+        }
+    }
+
+    private void parse(String args[]) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("-J") && arg.length() > 2) {
+                jvmArgs.add(arg.substring(2));
+                continue;
+            }
+            if (arg.equals("-text")) {
+                text = true;
+                continue;
+            }
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++i];
+            if (arg.equals("-imagej")) {
+                imagej = new File(value);
+            } else if (arg.equals("-ijloader")) {
+                ijloader = new File(value);
+            } else if (arg.equals("-plugin")) {
+                plugins.add(new File(value));
+            } else if (arg.equals("-macro")) {
+                macros.add(new File(value));
+            } else if (arg.equals("-images")) {
+                imageDir = new File(value);
+            } else if (arg.equals("-synthetic")) {
+                synthetic = parsePositive(arg, value);
+            } else if (arg.equals("-size")) {
+                int x = value.indexOf('x');
+                if (x < 0) {
+                    throw new IllegalArgumentException("Bad size " + value);
+                }
+                width = parsePositive(arg, value.substring(0, x));
+                height = parsePositive(arg, value.substring(x + 1));
+            } else if (arg.equals("-objects")) {
+                objects = parsePositive(arg, value);
+            } else if (arg.equals("-warmup")) {
+                warmup = parseInt(arg, value);
+            } else if (arg.equals("-inflight")) {
+                inflight = parsePositive(arg, value);
+            } else if (arg.equals("-batch")) {
+                batch = parsePositive(arg, value);
+            } else if (arg.equals("-record")) {
+                recordFile = new File(value);
+            } else if (arg.equals("-expect")) {
+                expectFile = new File(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        if (imagej == null) {
+            throw new IllegalArgumentException("No ImageJ given");
+        }
+    }
+
+    private void run() throws IOException, InterruptedException {
+        List<Image> images = imageDir != null ? readImages(imageDir)
+                : makeImages(synthetic, width, height);
+        if (images.isEmpty()) {
+            throw new IOException("No images in " + imageDir);
+        }
+        if (objects < 0) {
+            objects = 10 * images.size();
+        }
+        if (warmup < 0) {
+            warmup = images.size();
+        }
+        warmup = Math.min(warmup, objects - 1);
+        Map<String, String> expected = expectFile != null ? readResults(expectFile)
+                : null;
+
+        File scratch = createTempDir();
+        try {
+            File dir = installImageJ(scratch);
+            String macroNames[] = installMacros(new File(dir, "macros"));
+            replay(dir, images, macroNames, expected);
+        } finally {
+            deleteTree(scratch);
+        }
+    }
+
+    private void replay(File dir, List<Image> images, String macroNames[],
+            Map<String, String> expected) throws IOException,
+            InterruptedException {
+        int wanted = Connection.FEATURE_STATS;
+        if (!text) {
+            wanted |= Connection.FEATURE_BINARY_RESULTS;
+        }
+        if (macroNames.length > 1) {
+            wanted |= Connection.FEATURE_MULTI_MACRO;
+        }
+        if (batch > 0) {
+            if (macroNames.length > 1) {
+                throw new IOException("A batch is for one macro");
+            }
+            wanted |= Connection.FEATURE_BATCH;
+        }
+
+        long startupStart = System.nanoTime();
+        final Connection conn = new Connection(dir, jvmArgs, wanted);
+        long startupNanos = System.nanoTime() - startupStart;
+        if (macroNames.length > 1
+                && (conn.getFeatures() & Connection.FEATURE_MULTI_MACRO) == 0) {
+            conn.kill();
+            throw new IOException("IJLoader cannot run several macros");
+        }
+        if (batch > 0 && (conn.getFeatures() & Connection.FEATURE_BATCH) == 0) {
+            conn.kill();
+            throw new IOException("IJLoader does not take batches");
+        }
+
+        int n = objects;
+        boolean refused[] = findRefused(conn, images, n);
+        AtomicLongArray sent = new AtomicLongArray(n);
+        // a whole batch goes out at once
+        Semaphore window = new Semaphore(Math.max(inflight, batch));
+        Sender sender = new Sender(conn, images, macroNames, n, batch, sent,
+                window);
+        Thread senderThread = new Thread(sender, "Replay sender");
+        senderThread.start();
+
+        long latencies[] = new long[n - warmup];
+        boolean seen[] = new boolean[n];
+        String firstResults[] = new String[images.size()];
+        long measureEnd = 0;
+        try {
+            for (int got = 0; got < n;) {
+                Connection.Result r = conn.read();
+                long now = System.nanoTime();
+                if (r == null) {
+                    throw new IOException("IJLoader stopped after " + got
+                            + " of " + n + " results"
+                            + (sender.error != null ? ": " + sender.error : ""));
+                }
+                if (r.stats != null || r.id < 0 || r.id >= n || seen[r.id]) {
+                    fail("Unexpected result for object " + r.id);
+                    continue;
+                }
+                seen[r.id] = true;
+                got++;
+                window.release();
+                if (r.id >= warmup) {
+                    latencies[r.id - warmup] = now - sent.get(r.id);
+                    measureEnd = now;
+                }
+                if (refused[r.id] != r.names.contains(REFUSED)) {
+                    fail("Object " + r.id + " was "
+                            + (refused[r.id] ? "not " : "")
+                            + "refused: " + r.describeAttributes());
+                } else if (!refused[r.id]) {
+                    check(r, images, firstResults, expected);
+                }
+            }
+        } catch (IOException e) {
+            conn.kill();
+            throw e;
+        }
+        senderThread.join();
+
+        String stats = null;
+        if ((conn.getFeatures() & Connection.FEATURE_STATS) != 0) {
+            conn.sendStatsRequest(n);
+            conn.flush();
+            Connection.Result r;
+            while ((r = conn.read()) != null && r.stats == null) {
+                fail("Unexpected result for object " + r.id);
+            }
+            stats = r != null ? r.stats : null;
+        }
+        int status = conn.close();
+        if (status != 0) {
+            fail("IJLoader exited with status " + status);
+        }
+
+        if (recordFile != null) {
+            writeResults(recordFile, images, firstResults);
+        }
+        report(startupNanos, latencies, measureEnd - sent.get(warmup), stats);
+    }
+
+    /*
+     * The objects IJLoader must refuse: every one of a batch of more objects
+     * than it takes, and of a batch of more bytes, those from the one that
+     * goes over on.
+     */
+    private boolean[] findRefused(Connection conn, List<Image> images, int n) {
+        boolean refused[] = new boolean[n];
+        if (batch == 0) {
+            return refused;
+        }
+        for (int first = 0; first < n; first += batch) {
+            int size = Math.min(batch, n - first);
+            boolean over = size > conn.getBatchMaxObjects();
+            long bytes = 0;
+            for (int i = first; i < first + size; i++) {
+                bytes += images.get(i % images.size()).data.length;
+                over |= bytes > conn.getBatchMaxBytes();
+                refused[i] = over;
+            }
+        }
+        return refused;
+    }
+
+    /**
+     * Sends the objects, one at a time or in batches, keeping at most as
+     * many in flight as the window has permits.
+     */
+    private static class Sender implements Runnable {
+        private final Connection conn;
+
+        private final List<Image> images;
+
+        private final String macroNames[];
+
+        private final int count;
+
+        private final int batch;
+
+        private final AtomicLongArray sent;
+
+        private final Semaphore window;
+
+        volatile Exception error;
+
+        Sender(Connection conn, List<Image> images, String macroNames[],
+                int count, int batch, AtomicLongArray sent, Semaphore window) {
+            this.conn = conn;
+            this.images = images;
+            this.macroNames = macroNames;
+            this.count = count;
+            this.batch = batch;
+            this.sent = sent;
+            this.window = window;
+        }
+
+        public void run() {
+            try {
+                if (batch > 0) {
+                    sendBatches();
+                    return;
+                }
+                for (int i = 0; i < count; i++) {
+                    window.acquire();
+                    sent.set(i, System.nanoTime());
+                    conn.sendObject(i, images.get(i % images.size()).data,
+                            macroNames);
+                    conn.flush();
+                }
+            } catch (Exception e) {
+                // the reader sees IJLoader go away
+                error = e;
+                conn.kill();
+            }
+        }
+
+        private void sendBatches() throws IOException, InterruptedException {
+            for (int first = 0; first < count; first += batch) {
+                byte data[][] = new byte[Math.min(batch, count - first)][];
+                window.acquire(data.length);
+                long now = System.nanoTime();
+                for (int i = 0; i < data.length; i++) {
+                    data[i] = images.get((first + i) % images.size()).data;
+                    sent.set(first + i, now);
+                }
+                conn.sendBatch(first, data, macroNames[0]);
+                conn.flush();
+            }
+        }
+    }
+
+    /*
+     * Every image must get the same result each time, and the one it got
+     * before if there is a record.
+     */
+    private void check(Connection.Result r, List<Image> images,
+            String firstResults[], Map<String, String> expected) {
+        int index = r.id % images.size();
+        String name = images.get(index).name;
+        String result = Double.toString(r.score) + r.describeAttributes();
+
+        if (firstResults[index] == null) {
+            firstResults[index] = result;
+        } else if (!firstResults[index].equals(result)) {
+            fail("Object " + r.id + " (" + name + ") got " + result
+                    + ", earlier " + firstResults[index]);
+        }
+        if (expected != null) {
+            String e = expected.get(name);
+            if (e == null) {
+                fail(name + " is not in " + expectFile);
+            } else if (!e.equals(result)) {
+                fail("Object " + r.id + " (" + name + ") got " + result
+                        + ", expected " + e);
+            }
+        }
+    }
+
+    private void fail(String message) {
+        if (++failures <= MAX_REPORTED) {
+            System.err.println("FAIL: " + message);
+        }
+    }
+
+    private void report(long startupNanos, long latencies[],
+            long measureNanos, String stats) {
+        System.out.println(String.format(Locale.US,
+                "IJLoader answered HELLO in %.0f ms", startupNanos / 1e6));
+        System.out.println(String.format(Locale.US,
+                "%d objects (%d warmup), %d measured in %.3f s: "
+                        + "%.2f objects/s", objects, warmup,
+                latencies.length, measureNanos / 1e9, latencies.length
+                        / (measureNanos / 1e9)));
+
+        Arrays.sort(latencies);
+        long sum = 0;
+        for (long l : latencies) {
+            sum += l;
+        }
+        System.out.println(String.format(Locale.US, "latency ms: mean %.3f"
+                + "  p50 %.3f  p90 %.3f  p99 %.3f  max %.3f", sum
+                / (double) latencies.length / 1e6,
+                percentile(latencies, 0.50) / 1e6, percentile(latencies, 0.90)
+                        / 1e6, percentile(latencies, 0.99) / 1e6,
+                latencies[latencies.length - 1] / 1e6));
+
+        if (stats != null) {
+            System.out.println();
+            System.out.print(stats);
+        }
+    }
+
+    /* of sorted values */
+    private static long percentile(long sorted[], double p) {
+        int rank = (int) Math.ceil(p * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    /* unpacks or copies ImageJ, and installs IJLoader and the plugins */
+    private File installImageJ(File scratch) throws IOException {
+        File dir = new File(scratch, "ImageJ");
+        if (imagej.isDirectory()) {
+            copyTree(imagej, dir);
+        } else {
+            unzip(imagej, scratch);
+        }
+        if (!new File(dir, "ij.jar").isFile()) {
+            throw new IOException("No ImageJ/ij.jar in " + imagej);
+        }
+        copyFile(ijloader, new File(dir, "ijloader.jar"));
+        File pluginDir = new File(dir, "plugins");
+        pluginDir.mkdirs();
+        for (File plugin : plugins) {
+            copyFile(plugin, new File(pluginDir, plugin.getName()));
+        }
+        return dir;
+    }
+
+    /* returns the names to send */
+    private String[] installMacros(File macroDir) throws IOException {
+        macroDir.mkdirs();
+        if (macros.isEmpty()) {
+            Writer w = new OutputStreamWriter(new FileOutputStream(new File(
+                    macroDir, DEFAULT_MACRO)), "UTF-8");
+            try {
+                w.write(DEFAULT_MACRO_TEXT);
+            } finally {
+                w.close();
+            }
+            return new String[] { DEFAULT_MACRO };
+        }
+
+        String names[] = new String[macros.size()];
+        for (int i = 0; i < names.length; i++) {
+            File macro = macros.get(i);
+            names[i] = macro.getName();
+            copyFile(macro, new File(macroDir, names[i]));
+        }
+        return names;
+    }
+
+    /* every plain file in dir, by name */
+    private static List<Image> readImages(File dir) throws IOException {
+        String names[] = dir.list();
+        if (names == null) {
+            throw new IOException("Cannot list " + dir);
+        }
+        Arrays.sort(names);
+        List<Image> images = new ArrayList<Image>();
+        for (String name : names) {
+            File f = new File(dir, name);
+            if (f.isFile() && !name.startsWith(".")) {
+                images.add(new Image(name, readFile(f)));
+            }
+        }
+        return images;
+    }
+
+    /*
+     * Gradients with a different number of disks on each, alternately PNG
+     * and JPEG, the same every run.
+     */
+    private static List<Image> makeImages(int count, int width, int height)
+            throws IOException {
+        List<Image> images = new ArrayList<Image>();
+        for (int i = 0; i < count; i++) {
+            BufferedImage img = new BufferedImage(width, height,
+                    BufferedImage.TYPE_INT_RGB);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int v = (x * 255 / width + y * 255 / height + i * 37) & 0xFF;
+                    img.setRGB(x, y, (v << 16) | ((255 - v) << 8) | (v / 2));
+                }
+            }
+            Graphics2D g = img.createGraphics();
+            g.setColor(Color.white);
+            int r = Math.max(1, Math.min(width, height) / 16);
+            for (int j = 0; j <= i; j++) {
+                g.fillOval((j * 7919 + i * 104729) % Math.max(1, width - r),
+                        (j * 6271 + i * 7907) % Math.max(1, height - r), r, r);
+            }
+            g.dispose();
+
+            String format = i % 2 == 0 ? "png" : "jpg";
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            if (!ImageIO.write(img, format, out)) {
+                throw new IOException("Cannot write " + format);
+            }
+            images.add(new Image("synthetic-" + i + "." + format, out
+                    .toByteArray()));
+        }
+        return images;
+    }
+
+    /* name, tab, score and attributes as check() describes them */
+    private static Map<String, String> readResults(File file)
+            throws IOException {
+        Map<String, String> results = new HashMap<String, String>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab > 0) {
+                    results.put(line.substring(0, tab), line
+                            .substring(tab + 1));
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return results;
+    }
+
+    private static void writeResults(File file, List<Image> images,
+            String results[]) throws IOException {
+        Writer w = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            for (int i = 0; i < results.length; i++) {
+                if (results[i] != null) {
+                    w.write(Connection.escape(images.get(i).name) + "\t"
+                            + results[i] + "\n");
+                }
+            }
+        } finally {
+            w.close();
+        }
+    }
+
+    private static File createTempDir() throws IOException {
+        File dir = File.createTempFile("ijloader-replay", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        return dir;
+    }
+
+    private static void unzip(File zip, File dir) throws IOException {
+        ZipInputStream in = new ZipInputStream(new BufferedInputStream(
+                new FileInputStream(zip)));
+        try {
+            ZipEntry e;
+            while ((e = in.getNextEntry()) != null) {
+                File f = new File(dir, e.getName());
+                if (!f.getCanonicalPath().startsWith(
+                        dir.getCanonicalPath() + File.separator)) {
+                    throw new IOException("Bad entry " + e.getName() + " in "
+                            + zip);
+                }
+                if (e.isDirectory()) {
+                    f.mkdirs();
+                } else {
+                    f.getParentFile().mkdirs();
+                    OutputStream out = new FileOutputStream(f);
+                    try {
+                        copy(in, out);
+                    } finally {
+                        out.close();
+                    }
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void copyTree(File from, File to) throws IOException {
+        if (from.isDirectory()) {
+            to.mkdirs();
+            String names[] = from.list();
+            if (names == null) {
+                throw new IOException("Cannot list " + from);
+            }
+            for (String name : names) {
+                copyTree(new File(from, name), new File(to, name));
+            }
+        } else {
+            copyFile(from, to);
+        }
+    }
+
+    private static void copyFile(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                copy(in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out)
+            throws IOException {
+        byte buf[] = new byte[1 << 16];
+        int n;
+        while ((n = in.read(buf)) >= 0) {
+            out.write(buf, 0, n);
+        }
+    }
+
+    private static byte[] readFile(File f) throws IOException {
+        byte b[] = new byte[(int) f.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            in.readFully(b);
+        } finally {
+            in.close();
+        }
+        return b;
+    }
+
+    private static void deleteTree(File f) {
+        File children[] = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        f.delete();
+    }
+
+    private static int parseInt(String option, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad number " + value
+                    + " for " + option);
+        }
+    }
+
+    private static int parsePositive(String option, String value) {
+        int n = parseInt(option, value);
+        if (n <= 0) {
+            throw new IllegalArgumentException(option + " must be positive");
+        }
+        return n;
+    }
+}
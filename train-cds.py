@@ -0,0 +1,159 @@
+#!/usr/bin/env python
+#
+#  ImageJFind, a Diamond filter for interoperating with ImageJ
+#
+#  Copyright (c) 2011 Carnegie Mellon University
+#  All rights reserved.
+#
+#  This software is distributed under the terms of the Eclipse Public
+#  License, Version 1.0 which can be found in the file named LICENSE.
+#  ANY USE, REPRODUCTION OR DISTRIBUTION OF THIS SOFTWARE CONSTITUTES
+#  RECIPIENT'S ACCEPTANCE OF THIS AGREEMENT
+#
+
+# Builds a class data sharing archive for the ImageJ JVM that
+# fil_imagej_exec starts.  IJLoader is run headless in a scratch ImageJ
+# directory on a few synthetic objects, the classes it loads are listed,
+# and the JVM dumps them into an archive, which is written zipped to the
+# output file.  The JVM that starts from the archive must be the same
+# build as this one, and the jars must have the same size and
+# modification time, so both here and in the filter they are given the
+# time passed with -t.
+#
+# If the JVM cannot do any of this, the output is left empty and the
+# filter runs without an archive.
+
+import os
+import shutil
+import struct
+import subprocess
+import sys
+import tempfile
+import zipfile
+import zlib
+from optparse import OptionParser
+
+HELLO = 0x80494A4C
+PROTOCOL_VERSION = 2
+MSG_OBJECT = 1
+FEATURE_BINARY_RESULTS = 1
+
+ARCHIVE = 'ijfind.jsa'
+CLASSPATH = 'ij.jar:ijloader.jar'
+MACRO = 'cds-training.ijm'
+
+# plain commands only: headless ImageJ cannot create dialogs, even ones
+# that macro options would have filled in
+MACRO_TEXT = '''run("8-bit");
+run("Measure");
+run("Diamond Filter", "expr=[COUNT('Mean') > 0 ? AVERAGE('Mean') + STDDEV('Mean') : MEDIAN('Mean')]");
+'''
+
+
+def png(width, height, channels, pixel):
+    '''An 8-bit grayscale or RGB PNG with pixel(x, y) as its values.'''
+    def chunk(kind, data):
+        body = kind + data
+        return (struct.pack('>I', len(data)) + body +
+                struct.pack('>I', zlib.crc32(body) & 0xffffffff))
+
+    rows = []
+    for y in range(height):
+        row = bytearray([0])
+        for x in range(width):
+            v = pixel(x, y)
+            row.extend([v] * channels)
+        rows.append(bytes(row))
+    color_type = 0 if channels == 1 else 2
+    header = struct.pack('>IIBBBBB', width, height, 8, color_type, 0, 0, 0)
+    return (b'\x89PNG\r\n\x1a\n' + chunk(b'IHDR', header) +
+            chunk(b'IDAT', zlib.compress(b''.join(rows))) +
+            chunk(b'IEND', b''))
+
+
+def training_objects(count):
+    for i in range(count):
+        size = 64 + 32 * (i % 4)
+        channels = 1 if i % 2 == 0 else 3
+        yield png(size, size, channels,
+                  lambda x, y: (x * 7 + y * 3 + i * 11) % 256)
+
+
+def record_classes(imagej_dir, classlist, objects):
+    java = subprocess.Popen(['java', '-Djava.awt.headless=true',
+                             '-Xshare:off',
+                             '-XX:DumpLoadedClassList=' + classlist,
+                             '-cp', CLASSPATH, 'ijloader.IJLoader'],
+                            cwd=imagej_dir, stdin=subprocess.PIPE,
+                            stdout=subprocess.PIPE)
+    macro = MACRO.encode('utf-8')
+    msgs = [struct.pack('>III', HELLO, PROTOCOL_VERSION,
+                        FEATURE_BINARY_RESULTS)]
+    for i, image in enumerate(training_objects(objects)):
+        msgs.append(struct.pack('>iii', MSG_OBJECT, i, len(image)) + image +
+                    struct.pack('>i', len(macro)) + macro)
+    # IJLoader exits at the end of its input, once every result is out
+    java.communicate(b''.join(msgs))
+    if java.returncode != 0:
+        raise RuntimeError('training run exited with %d' % java.returncode)
+
+
+def dump_archive(imagej_dir, classlist):
+    subprocess.check_call(['java', '-Xshare:dump',
+                           '-XX:SharedClassListFile=' + classlist,
+                           '-XX:SharedArchiveFile=' + ARCHIVE,
+                           '-cp', CLASSPATH],
+                          cwd=imagej_dir, stdout=open(os.devnull, 'w'))
+
+
+def main():
+    parser = OptionParser(
+        usage='%prog [options] imagej-zip ijloader-jar diamond-filter-jar',
+        description='Build a class data sharing archive for IJLoader.')
+    parser.add_option('-o', dest='outfile', metavar='outfile',
+            default='ijfind-cds.zip', help='zip file to write the archive to')
+    parser.add_option('-t', dest='mtime', metavar='seconds', type='int',
+            default=1000000000,
+            help='modification time to give the jars')
+    parser.add_option('-n', dest='objects', metavar='count', type='int',
+            default=20, help='number of objects to train on')
+    opts, args = parser.parse_args()
+    if len(args) != 3:
+        parser.error('wrong number of arguments')
+    imagej_zip, ijloader_jar, diamond_filter_jar = args
+
+    # an empty archive means none
+    open(opts.outfile, 'wb').close()
+
+    scratch = tempfile.mkdtemp(prefix='ijfind-cds')
+    try:
+        zipfile.ZipFile(imagej_zip).extractall(scratch)
+        imagej_dir = os.path.join(scratch, 'ImageJ')
+        shutil.copy(ijloader_jar, os.path.join(imagej_dir, 'ijloader.jar'))
+        shutil.copy(diamond_filter_jar,
+                    os.path.join(imagej_dir, 'plugins', 'diamond_filter.jar'))
+        macros = os.path.join(imagej_dir, 'macros')
+        if not os.path.isdir(macros):
+            os.mkdir(macros)
+        open(os.path.join(macros, MACRO), 'w').write(MACRO_TEXT)
+        for jar in CLASSPATH.split(':'):
+            os.utime(os.path.join(imagej_dir, jar), (opts.mtime, opts.mtime))
+
+        classlist = os.path.join(scratch, 'classlist')
+        record_classes(imagej_dir, classlist, opts.objects)
+        dump_archive(imagej_dir, classlist)
+
+        out = zipfile.ZipFile(opts.outfile, 'w', zipfile.ZIP_DEFLATED)
+        out.write(os.path.join(imagej_dir, ARCHIVE), ARCHIVE)
+        out.close()
+        print('wrote %s' % opts.outfile)
+    except Exception:
+        e = sys.exc_info()[1]
+        sys.stderr.write('Not using class data sharing: %s\n' % e)
+        open(opts.outfile, 'wb').close()
+    finally:
+        shutil.rmtree(scratch)
+
+
+if __name__ == '__main__':
+    main()